@@ -162,6 +162,49 @@ public enum Nucleic {
         return rawByte;
     }
 
+    /**
+     * IUPAC meaning of nucleic as set of concrete bases (bit 1 A, 2 C, 4 G, 8 T or U)
+     *
+     * @return bit mask of bases this code stands for (0 for NONE)
+     */
+    public int toBaseMask() {
+        switch (this) {
+            case A:
+                return 1;
+            case C:
+                return 2;
+            case G:
+                return 4;
+            case T:
+            case U:
+                return 8;
+            case R:
+                return 1 | 4;
+            case Y:
+                return 2 | 8;
+            case S:
+                return 2 | 4;
+            case W:
+                return 1 | 8;
+            case K:
+                return 4 | 8;
+            case M:
+                return 1 | 2;
+            case B:
+                return 2 | 4 | 8;
+            case D:
+                return 1 | 4 | 8;
+            case H:
+                return 1 | 2 | 8;
+            case V:
+                return 1 | 2 | 4;
+            case N:
+                return 1 | 2 | 4 | 8;
+            default:
+                return 0;
+        }
+    }
+
     /**
      * return true if it is not convertible to nucleic
      *
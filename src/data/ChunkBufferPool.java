@@ -0,0 +1,190 @@
+package sequence.data;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable cache sized direct buffers for chunks of import pipeline.
+ * Reader borrows buffer, transformations work on it in place, writer writes it and counter returns it to pool.
+ * Every lease is reserved in memory governor first, so pool never allocates more than its budget
+ * and memory of chunks in flight has hard ceiling.
+ * When debug logging is enabled, every lease remembers where it was acquired to find leaks.
+ */
+@Slf4j
+public class ChunkBufferPool {
+    private static final long LEAK_SUSPICION_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ImportMemoryGovernor governor;
+    private final AtomicInteger allocated = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final Object returned = new Object();//monitor for threads waiting for free buffer
+    private final Map<ByteBuffer, Throwable> leases;//only in debug mode
+    private final Map<ByteBuffer, Long> oversized = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * @param bufferSize size of one buffer (should be size of chunk that fits in cache)
+     * @param governor   budget every lease is reserved in
+     */
+    public ChunkBufferPool(int bufferSize, ImportMemoryGovernor governor) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer pool must have non empty buffers");
+        this.bufferSize = bufferSize;
+        this.governor = governor;
+        //at least one chunk can be written while other is counted
+        this.maxBuffers = (int) Math.max(2, Math.min(Integer.MAX_VALUE, governor.getBudget() / bufferSize));
+        this.leases = log.isDebugEnabled()
+                ? Collections.synchronizedMap(new IdentityHashMap<>())
+                : null;
+    }
+
+    /**
+     * Borrows buffer, blocks when memory budget is exhausted or all buffers are in use
+     * (blocking is managed so fork join pool can compensate)
+     * Chunks bigger than pooled buffer are allocated on heap and are not pooled (but they are in budget).
+     *
+     * @param size needed size
+     * @return buffer with position 0 and limit set to size
+     */
+    public ByteBuffer acquire(int size) {
+        return acquireReserved(size, governor.reserve(leaseBytes(size), this::reportLeases));
+    }
+
+    /**
+     * @param size needed size
+     * @return bytes lease of chunk of this size takes from memory budget
+     */
+    public long leaseBytes(int size) {
+        return size > bufferSize ? size : bufferSize;
+    }
+
+    /**
+     * Same as acquire but caller already reserved lease in governor (see leaseBytes),
+     * buffer is then available without waiting for budget
+     *
+     * @param size     needed size
+     * @param reserved bytes reserved for this lease, they are released with buffer
+     * @return buffer with position 0 and limit set to size
+     */
+    public ByteBuffer acquireReserved(int size, long reserved) {
+        if (size > bufferSize) {
+            log.debug("Chunk of {} bytes is bigger than pooled buffer, allocating it on heap", size);
+            final ByteBuffer buffer = ByteBuffer.allocate(size);
+            oversized.put(buffer, reserved);
+            return buffer;
+        }
+        ByteBuffer buffer = poll();
+        if (buffer == null) {
+            final ByteBuffer[] result = new ByteBuffer[1];
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        final long start = System.nanoTime();
+                        boolean reported = false;
+                        synchronized (returned) {
+                            while ((result[0] = poll()) == null) {
+                                returned.wait(100);
+                                if (!reported && System.nanoTime() - start > LEAK_SUSPICION_NANOS) {
+                                    reported = true;
+                                    reportLeases();
+                                }
+                            }
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return result[0] != null || (result[0] = poll()) != null;
+                    }
+                });
+            } catch (InterruptedException e) {
+                governor.release(reserved);//budget is shared by all imports, it must not shrink
+                Thread.currentThread().interrupt();
+                throw new InternalServerException("waiting for free chunk buffer interrupted", e);
+            }
+            buffer = result[0];
+        }
+        if (leases != null)
+            leases.put(buffer, new Throwable("chunk buffer acquired here"));
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to pool, buffers that were not pooled (heap ones) are left to GC
+     * buffers that were not acquired from pool are ignored
+     *
+     * @param buffer buffer returned by acquire, it must not be used afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+            final Long reserved = oversized.remove(buffer);
+            if (reserved != null)
+                governor.release(reserved);
+            return;
+        }
+        if (leases != null && leases.remove(buffer) == null)
+            throw new IllegalStateException("Released chunk buffer that is not leased (released twice?)");
+        free.offer(buffer);
+        synchronized (returned) {
+            returned.notify();
+        }
+        governor.release(bufferSize);
+    }
+
+    /**
+     * @return number of buffers currently borrowed
+     */
+    public int leasedBuffers() {
+        return allocated.get() - free.size();
+    }
+
+    public long getMemoryCeiling() {
+        return (long) bufferSize * maxBuffers;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    private ByteBuffer poll() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null)
+            return buffer;
+        int current;
+        while ((current = allocated.get()) < maxBuffers) {
+            if (allocated.compareAndSet(current, current + 1))
+                return ByteBuffer.allocateDirect(bufferSize);
+        }
+        return free.poll();
+    }
+
+    private void reportLeases() {
+        if (leases == null) {
+            log.warn("Waiting for chunk buffer for long time, {} of {} buffers are in use, {} " +
+                    "(enable debug logging to find leaks)", leasedBuffers(), maxBuffers, governor);
+            return;
+        }
+        final List<Throwable> sites;
+        synchronized (leases) {
+            sites = new ArrayList<>(leases.values());
+        }
+        log.warn("Waiting for chunk buffer for long time, {} buffers are leased, possible leak, {}", sites.size(), governor);
+        for (Throwable site : sites)
+            log.debug("Leased chunk buffer", site);
+    }
+}
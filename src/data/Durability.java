@@ -0,0 +1,19 @@
+package sequence.data;
+
+/**
+ * How saved sequence buffers are made durable before sequence that points to them is saved
+ */
+public enum Durability {
+    /**
+     * data are left to OS (crash can leave sequence pointing to truncated buffer)
+     */
+    NONE,
+    /**
+     * every import forces its files to disk itself
+     */
+    PER_IMPORT,
+    /**
+     * imports finishing at about same time share one force of their files by background flusher
+     */
+    GROUP_COMMIT
+}
@@ -0,0 +1,134 @@
+package sequence.data;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that forces files of imports to disk in groups.
+ * Requests that come while one group is forced (or during short window after first request)
+ * are forced together and every file is forced only once per group (segments are shared by many imports).
+ */
+@Slf4j
+final class GroupCommitFlusher implements Closeable {
+    private static final long GROUP_WINDOW_MILLIS = 5;
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private static final class Request {
+        final Collection<Path> files;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Request(Collection<Path> files) {
+            this.files = files;
+        }
+    }
+
+    GroupCommitFlusher() {
+        flusher = new Thread(this::run, "sequence-group-commit");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @param files files (and directories) to force
+     * @return future completed when all files are on disk
+     */
+    CompletableFuture<Void> request(Collection<Path> files) {
+        final Request request = new Request(files);
+        if (!running) {
+            request.durable.completeExceptionally(new IllegalStateException("Group commit flusher is closed"));
+            return request.durable;
+        }
+        requests.add(request);
+        return request.durable;
+    }
+
+    private void run() {
+        final List<Request> group = new ArrayList<>();
+        while (running || !requests.isEmpty()) {
+            try {
+                final Request first = requests.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                group.add(first);
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GROUP_WINDOW_MILLIS);
+                Request next;
+                long left;
+                while ((left = deadline - System.nanoTime()) > 0
+                        && (next = requests.poll(left, TimeUnit.NANOSECONDS)) != null)
+                    group.add(next);
+                requests.drainTo(group);
+                flush(group);
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private static void flush(List<Request> group) {
+        final Set<Path> files = new LinkedHashSet<>();
+        for (Request request : group)
+            files.addAll(request.files);
+        try {
+            for (Path file : files)
+                force(file);
+            for (Request request : group)
+                request.durable.complete(null);
+            log.debug("Group commit forced {} files of {} imports", files.size(), group.size());
+        } catch (IOException | RuntimeException e) {
+            for (Request request : group)
+                request.durable.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * forces file or directory (new file is durable only when its directory entry is)
+     * file is opened for writing, forcing of read only handle is silently ignored on Windows
+     */
+    static void force(Path file) throws IOException {
+        if (Files.isDirectory(file)) {
+            try (FileChannel directory = FileChannel.open(file, StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException e) {
+                //some platforms can not open directories, there is nothing more we can do there
+                log.debug("Directory {} can not be forced", file, e);
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request left;
+        while ((left = requests.poll()) != null)
+            left.durable.completeExceptionally(new IllegalStateException("Group commit flusher is closed"));
+    }
+}
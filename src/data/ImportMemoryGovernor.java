@@ -0,0 +1,164 @@
+package sequence.data;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide memory budget of chunks in flight of all running imports.
+ * Every chunk reserves its bytes before it is materialized and releases them when it is counted and written,
+ * when budget is exhausted import waits (managed blocking so sequence import pool stays alive)
+ * so concurrent imports slow down instead of running out of memory.
+ * Is thread save
+ */
+@Slf4j
+public class ImportMemoryGovernor {
+    private static final long LONG_WAIT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final long budget;
+    private long reserved;//guarded by this
+
+    private final AtomicLong peakReserved = new AtomicLong(0);
+    private final LongAdder reservations = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * @param budget maximal number of bytes reserved at once
+     */
+    public ImportMemoryGovernor(long budget) {
+        if (budget <= 0)
+            throw new IllegalArgumentException("Memory budget of imports must be positive");
+        this.budget = budget;
+    }
+
+    /**
+     * Reserves bytes, blocks until they fit to budget.
+     * Reservation bigger than whole budget is granted when nothing else is reserved.
+     *
+     * @param bytes bytes to reserve
+     * @return actually reserved bytes, they must be given back to release
+     */
+    public long reserve(long bytes) {
+        return reserve(bytes, () -> log.warn("Waiting for import memory for long time, {}", this));
+    }
+
+    /**
+     * Reserves bytes, blocks until they fit to budget.
+     *
+     * @param bytes      bytes to reserve
+     * @param onLongWait called once when reservation waits suspiciously long (something probably leaks)
+     * @return actually reserved bytes, they must be given back to release
+     */
+    public long reserve(long bytes, Runnable onLongWait) {
+        final long toReserve = Math.min(bytes, budget);
+        reservations.increment();
+        if (tryReserve(toReserve))
+            return toReserve;
+
+        final long start = System.nanoTime();
+        waits.increment();
+        log.debug("Import memory budget exhausted ({} of {} bytes reserved), waiting for {} bytes",
+                getReservedBytes(), budget, toReserve);
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean done = false;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    boolean reported = false;
+                    synchronized (ImportMemoryGovernor.this) {
+                        while (!(done = tryReserve(toReserve))) {
+                            ImportMemoryGovernor.this.wait(100);
+                            if (!reported && System.nanoTime() - start > LONG_WAIT_NANOS) {
+                                reported = true;
+                                onLongWait.run();
+                            }
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return done || (done = tryReserve(toReserve));
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerException("waiting for import memory budget interrupted");
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+        return toReserve;
+    }
+
+    /**
+     * Reserves bytes only if they fit to budget right now, never waits
+     * (for callers that hold memory only they can release, waiting could deadlock them)
+     *
+     * @param bytes bytes to reserve
+     * @return actually reserved bytes (they must be given back to release) or 0 if they do not fit
+     */
+    public long reserveNow(long bytes) {
+        final long toReserve = Math.min(bytes, budget);
+        reservations.increment();
+        return tryReserve(toReserve) ? toReserve : 0;
+    }
+
+    /**
+     * @param bytes bytes returned by reserve
+     */
+    public synchronized void release(long bytes) {
+        reserved -= bytes;
+        assert reserved >= 0 : "Released more import memory than was reserved";
+        notifyAll();
+    }
+
+    private synchronized boolean tryReserve(long bytes) {
+        if (reserved + bytes > budget)
+            return false;
+        reserved += bytes;
+        peakReserved.accumulateAndGet(reserved, Math::max);
+        return true;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reserved;
+    }
+
+    public long getPeakReservedBytes() {
+        return peakReserved.get();
+    }
+
+    /**
+     * @return number of all reservations
+     */
+    public long getReservationCount() {
+        return reservations.sum();
+    }
+
+    /**
+     * @return number of reservations that had to wait for budget
+     */
+    public long getWaitCount() {
+        return waits.sum();
+    }
+
+    public long getWaitMillis() {
+        return waitNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("import memory: %d/%d bytes reserved (peak %d), %d reservations, %d waited for %d ms",
+                getReservedBytes(), budget, getPeakReservedBytes(), getReservationCount(), getWaitCount(), getWaitMillis());
+    }
+}
@@ -0,0 +1,432 @@
+package sequence.data;
+
+import sequence.Nucleic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * K-mer position index over 2 bit alphabet (A, C, G, T/U) persisted next to sequence buffer. It has two parts:
+ * <p>
+ * Sampled part stores positions of k-mers starting at every STEP-th base in buckets by k-mer code, so motif of length
+ * at least k + STEP - 1 is found by looking up STEP k-mers of it (IUPAC codes are expanded to concrete bases)
+ * and verifying candidates against buffer. It has few candidates even for big k chosen for long sequences.
+ * <p>
+ * Short part stores positions of all SHORT_K-mers, so shorter motifs are answered too. Motif of length at least
+ * SHORT_K is found by looking up one k-mer of it, shorter motif is prefix of k-mers in contiguous range of buckets
+ * (buckets are ordered by code, first base is most significant), those need no verification. Positions where run of
+ * concrete bases is shorter than SHORT_K (before N runs and at end) are stored separately and verified.
+ * <p>
+ * Matching semantic (same for index and scan): motif code matches position that holds concrete base
+ * the code stands for, ambiguity codes in sequence itself (N runs etc.) never match.
+ */
+final class MotifIndex {
+    private static final int MAGIC = 0x4d4f5432;//MOT2
+    //magic, k, step, length, sampled positions, short k, short positions, edge positions
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 4 + 4 + 4;
+    private static final int STEP = 8;
+    private static final int MIN_K = 6;
+    private static final int MAX_K = 12;//table of 4^12 ints is 64 MB (mapped, reserved in import memory budget)
+    private static final int SHORT_K = 8;//table of 4^8 ints is 256 kB, positions take 4 bytes per base
+    private static final int MAX_EXPANSIONS = 4096;//more concrete k-mers than this is slower than scan
+    private static final int WINDOW_SHIFT = 28;//positions are mapped by windows of 2^28 ints (1 GB)
+
+    private static final byte[] CODE = new byte[256];//internal format byte -> 2 bit code or -1
+
+    static {
+        Arrays.fill(CODE, (byte) -1);
+        CODE[Nucleic.A.toByte() & 0xff] = 0;
+        CODE[Nucleic.C.toByte() & 0xff] = 1;
+        CODE[Nucleic.G.toByte() & 0xff] = 2;
+        CODE[Nucleic.T.toByte() & 0xff] = 3;
+        CODE[Nucleic.U.toByte() & 0xff] = 3;
+    }
+
+    /**
+     * Int array in mapped file, it is mapped by windows so it can be bigger than 2 GB
+     */
+    private static final class MappedInts {
+        private final MappedByteBuffer[] windows;
+
+        MappedInts(FileChannel channel, FileChannel.MapMode mode, long offset, long count) throws IOException {
+            windows = new MappedByteBuffer[(int) ((count + (1L << WINDOW_SHIFT) - 1) >>> WINDOW_SHIFT)];
+            for (int w = 0; w < windows.length; w++) {
+                final long first = (long) w << WINDOW_SHIFT;
+                windows[w] = channel.map(mode, offset + 4 * first, 4 * Math.min(1L << WINDOW_SHIFT, count - first));
+            }
+        }
+
+        int get(long i) {
+            return windows[(int) (i >>> WINDOW_SHIFT)].getInt((int) (i & ((1L << WINDOW_SHIFT) - 1)) << 2);
+        }
+
+        void put(long i, int value) {
+            windows[(int) (i >>> WINDOW_SHIFT)].putInt((int) (i & ((1L << WINDOW_SHIFT) - 1)) << 2, value);
+        }
+
+        void force() {
+            for (MappedByteBuffer window : windows)
+                window.force();
+        }
+    }
+
+    private MotifIndex() {
+    }
+
+    /**
+     * @param length length of sequence
+     * @return size of index file without positions (header and bucket tables), build keeps it mapped
+     */
+    static long tableBytes(int length) {
+        return HEADER_SIZE + 4L * ((1L << (2 * chooseK(length))) + 1) + 4L * ((1L << (2 * SHORT_K)) + 1);
+    }
+
+    /**
+     * Builds index in two sequential passes (counting and filling buckets),
+     * bucket tables and positions are mapped file so build does not allocate on heap
+     *
+     * @param data  whole sequence in internal format (from 0 to limit)
+     * @param index file to write index to
+     */
+    static void build(ByteBuffer data, Path index) throws IOException {
+        final int length = data.limit();
+        final int k = chooseK(length);
+        final int buckets = 1 << (2 * k);
+        final int mask = buckets - 1;
+        final int shortBuckets = 1 << (2 * SHORT_K);
+        final int shortMask = shortBuckets - 1;
+        final long shortTableStart = HEADER_SIZE + 4L * (buckets + 1);
+        final long positionsStart = tableBytes(length);
+
+        final Path written = index.resolveSibling(index.getFileName() + ".tmp");
+        try (FileChannel output = FileChannel.open(written, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //buckets + 1 counters in both tables, new file is zero filled
+            final MappedInts table = new MappedInts(output, FileChannel.MapMode.READ_WRITE, HEADER_SIZE, buckets + 1);
+            final MappedInts shortTable = new MappedInts(output, FileChannel.MapMode.READ_WRITE, shortTableStart, shortBuckets + 1);
+
+            //pass 1 counts sampled k-mers, all short k-mers and positions where run of bases is too short for them
+            int code = 0;
+            int shortCode = 0;
+            int valid = 0;
+            int edges = 0;
+            int base;
+            for (int i = 0; i < length; i++) {
+                base = CODE[data.get(i) & 0xff];
+                if (base < 0) {
+                    edges += Math.min(valid, SHORT_K - 1);
+                    valid = 0;
+                    continue;
+                }
+                code = ((code << 2) | base) & mask;
+                shortCode = ((shortCode << 2) | base) & shortMask;
+                if (++valid >= k && (i - k + 1) % STEP == 0)
+                    table.put(code, table.get(code) + 1);
+                if (valid >= SHORT_K)
+                    shortTable.put(shortCode, shortTable.get(shortCode) + 1);
+            }
+            edges += Math.min(valid, SHORT_K - 1);
+            final int total = toBucketStarts(table, buckets);
+            final int shortTotal = toBucketStarts(shortTable, shortBuckets);
+
+            final long shortPositionsStart = positionsStart + 4L * total;
+            final long edgesStart = shortPositionsStart + 4L * shortTotal;
+            final MappedInts positions = new MappedInts(output, FileChannel.MapMode.READ_WRITE, positionsStart, total);
+            final MappedInts shortPositions = new MappedInts(output, FileChannel.MapMode.READ_WRITE, shortPositionsStart, shortTotal);
+            final MappedInts edgePositions = new MappedInts(output, FileChannel.MapMode.READ_WRITE, edgesStart, edges);
+
+            //pass 2 fills buckets, table[c] is used as cursor of bucket c so it ends at start of bucket c + 1
+            code = 0;
+            shortCode = 0;
+            valid = 0;
+            int edge = 0;
+            int cursor;
+            for (int i = 0; i < length; i++) {
+                base = CODE[data.get(i) & 0xff];
+                if (base < 0) {
+                    for (int q = i - Math.min(valid, SHORT_K - 1); q < i; q++)
+                        edgePositions.put(edge++, q);
+                    valid = 0;
+                    continue;
+                }
+                code = ((code << 2) | base) & mask;
+                shortCode = ((shortCode << 2) | base) & shortMask;
+                if (++valid >= k && (i - k + 1) % STEP == 0) {
+                    cursor = table.get(code);
+                    positions.put(cursor, i - k + 1);
+                    table.put(code, cursor + 1);
+                }
+                if (valid >= SHORT_K) {
+                    cursor = shortTable.get(shortCode);
+                    shortPositions.put(cursor, i - SHORT_K + 1);
+                    shortTable.put(shortCode, cursor + 1);
+                }
+            }
+            for (int q = length - Math.min(valid, SHORT_K - 1); q < length; q++)
+                edgePositions.put(edge++, q);
+            fromBucketEnds(table, buckets);
+            fromBucketEnds(shortTable, shortBuckets);
+            positions.force();
+            shortPositions.force();
+            edgePositions.force();
+            table.force();
+            shortTable.force();
+
+            final MappedByteBuffer header = output.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(0, MAGIC).putInt(4, k).putInt(8, STEP).putLong(12, length).putInt(20, total)
+                    .putInt(24, SHORT_K).putInt(28, shortTotal).putInt(32, edges);
+            header.force();
+        }
+        Files.move(written, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Finds motif with help of index
+     *
+     * @param data  whole sequence in internal format
+     * @param index index built by build
+     * @param motif motif as IUPAC base masks
+     * @return sorted positions of all occurrences or null if index can not answer
+     * (motif is too ambiguous or index has format of older version)
+     */
+    static long[] search(ByteBuffer data, Path index, int[] motif) throws IOException {
+        try (FileChannel input = FileChannel.open(index, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (input.read(header, header.position()) < 0)
+                    return null;//index of older version is shorter
+            }
+            if (header.getInt(0) != MAGIC)
+                return null;
+            final int k = header.getInt(4);
+            final int step = header.getInt(8);
+            if (header.getLong(12) != data.limit())
+                throw new IOException("Motif index " + index + " does not belong to sequence buffer");
+            final int total = header.getInt(20);
+            final int shortK = header.getInt(24);
+            final int shortTotal = header.getInt(28);
+            final int edges = header.getInt(32);
+            final long shortTableStart = HEADER_SIZE + 4L * ((1L << (2 * k)) + 1);
+            final long positionsStart = shortTableStart + 4L * ((1L << (2 * shortK)) + 1);
+            final long shortPositionsStart = positionsStart + 4L * total;
+            final long edgesStart = shortPositionsStart + 4L * shortTotal;
+            if (input.size() < edgesStart + 4L * edges)
+                throw new IOException("Motif index " + index + " is truncated");
+
+            long[] found = null;
+            if (motif.length >= k + step - 1)
+                found = searchKmers(data, motif, k, step,
+                        new MappedInts(input, FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (1L << (2 * k)) + 1),
+                        new MappedInts(input, FileChannel.MapMode.READ_ONLY, positionsStart, total));
+            if (found != null)
+                return found;
+            final MappedInts shortTable = new MappedInts(input, FileChannel.MapMode.READ_ONLY, shortTableStart, (1L << (2 * shortK)) + 1);
+            final MappedInts shortPositions = new MappedInts(input, FileChannel.MapMode.READ_ONLY, shortPositionsStart, shortTotal);
+            if (motif.length >= shortK)
+                return searchKmers(data, motif, shortK, 1, shortTable, shortPositions);
+            return searchPrefix(data, motif, shortK, shortTable, shortPositions,
+                    new MappedInts(input, FileChannel.MapMode.READ_ONLY, edgesStart, edges), edges);
+        }
+    }
+
+    /**
+     * Finds motif by scanning whole sequence (used when there is no index or it can not answer)
+     *
+     * @return sorted positions of all occurrences
+     */
+    static long[] scan(ByteBuffer data, int[] motif) {
+        long[] found = new long[16];
+        int foundCount = 0;
+        final long last = (long) data.limit() - motif.length;
+        final int firstMask = motif[0];
+        for (long q = 0; q <= last; q++) {
+            if ((baseMask(data.get((int) q)) & firstMask) != 0 && matches(data, q, motif))
+                found = add(found, foundCount++, q);
+        }
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    /**
+     * @param motif motif in IUPAC codes (case insensitive)
+     * @return base masks of motif
+     * @throws IllegalArgumentException when motif is empty or contains something that is not nucleic
+     */
+    static int[] parseMotif(String motif) {
+        if (motif == null || motif.isEmpty())
+            throw new IllegalArgumentException("Motif must not be empty");
+        final int[] masks = new int[motif.length()];
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = Nucleic.get(motif.charAt(i)).toBaseMask();
+            if (masks[i] == 0)
+                throw new IllegalArgumentException("Motif contains illegal character '" + motif.charAt(i) + "'");
+        }
+        return masks;
+    }
+
+    /**
+     * Looks up k-mers of motif in index that has positions of k-mers starting at every step-th base
+     * (motif must be at least k + step - 1 long) and verifies candidates
+     *
+     * @return sorted positions of all occurrences or null if motif is too ambiguous
+     */
+    private static long[] searchKmers(ByteBuffer data, int[] motif, int k, int step, MappedInts table, MappedInts positions) {
+        //every occurrence q has exactly one sampled position in [q + first, q + first + step)
+        //first is chosen so that k-mers looked up there have fewest expansions
+        final int lastFirst = motif.length - k - step + 1;
+        int first = -1;
+        long cheapest = Long.MAX_VALUE;
+        for (int candidate = 0; candidate <= lastFirst; candidate++) {
+            long expansions = 0;
+            for (int j = candidate; j < candidate + step; j++)
+                expansions += expansions(motif, j, k);
+            if (expansions < cheapest) {
+                cheapest = expansions;
+                first = candidate;
+            }
+        }
+        if (cheapest > MAX_EXPANSIONS)
+            return null;
+
+        long[] found = new long[16];
+        int foundCount = 0;
+        final int[] codes = new int[MAX_EXPANSIONS];
+        for (int j = first; j < first + step; j++) {
+            final int codeCount = expand(motif, j, k, codes);
+            for (int c = 0; c < codeCount; c++) {
+                final int to = table.get(codes[c] + 1);
+                for (int p = table.get(codes[c]); p < to; p++) {
+                    final long occurrence = (long) positions.get(p) - j;
+                    if (occurrence >= 0 && matches(data, occurrence, motif))
+                        found = add(found, foundCount++, occurrence);
+                }
+            }
+        }
+        found = Arrays.copyOf(found, foundCount);
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * Finds motif shorter than k of unsampled index: k-mers it is prefix of are in one range of buckets per expansion,
+     * positions where run of bases is shorter than k are verified
+     *
+     * @return sorted positions of all occurrences or null if motif is too ambiguous
+     */
+    private static long[] searchPrefix(ByteBuffer data, int[] motif, int k, MappedInts table, MappedInts positions,
+                                       MappedInts edgePositions, int edges) {
+        if (expansions(motif, 0, motif.length) > MAX_EXPANSIONS)
+            return null;
+        final int[] codes = new int[MAX_EXPANSIONS];
+        final int codeCount = expand(motif, 0, motif.length, codes);
+        final int shift = 2 * (k - motif.length);
+
+        long[] found = new long[16];
+        int foundCount = 0;
+        for (int c = 0; c < codeCount; c++) {
+            final int to = table.get((long) (codes[c] + 1) << shift);
+            for (int p = table.get((long) codes[c] << shift); p < to; p++)
+                found = add(found, foundCount++, positions.get(p));
+        }
+        for (int e = 0; e < edges; e++) {
+            final int occurrence = edgePositions.get(e);
+            if (matches(data, occurrence, motif))
+                found = add(found, foundCount++, occurrence);
+        }
+        found = Arrays.copyOf(found, foundCount);
+        Arrays.sort(found);
+        return found;
+    }
+
+    private static long[] add(long[] found, int foundCount, long occurrence) {
+        if (foundCount == found.length)
+            found = Arrays.copyOf(found, found.length * 2);
+        found[foundCount] = occurrence;
+        return found;
+    }
+
+    /**
+     * converts bucket counts to bucket starts (table[buckets] is total count)
+     *
+     * @return total count
+     */
+    private static int toBucketStarts(MappedInts table, int buckets) {
+        int total = 0;
+        int count;
+        for (int c = 0; c <= buckets; c++) {
+            count = table.get(c);
+            table.put(c, total);
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * restores bucket starts from cursors that ended at start of next bucket
+     */
+    private static void fromBucketEnds(MappedInts table, int buckets) {
+        for (int c = buckets; c > 0; c--)
+            table.put(c, table.get(c - 1));
+        table.put(0, 0);
+    }
+
+    private static boolean matches(ByteBuffer data, long occurrence, int[] motif) {
+        if (occurrence + motif.length > data.limit())
+            return false;
+        final int start = (int) occurrence;
+        for (int i = 0; i < motif.length; i++) {
+            if ((baseMask(data.get(start + i)) & motif[i]) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static int baseMask(byte internal) {
+        final int code = CODE[internal & 0xff];
+        return code < 0 ? 0 : 1 << code;
+    }
+
+    private static long expansions(int[] motif, int from, int k) {
+        long expansions = 1;
+        for (int i = from; i < from + k; i++)
+            expansions *= Integer.bitCount(motif[i]);
+        return expansions;
+    }
+
+    /**
+     * expands IUPAC k-mer of motif to codes of all concrete k-mers
+     *
+     * @return number of codes
+     */
+    private static int expand(int[] motif, int from, int k, int[] codes) {
+        int count = 1;
+        codes[0] = 0;
+        for (int i = from; i < from + k; i++) {
+            final int previous = count;
+            count = 0;
+            final int[] current = Arrays.copyOf(codes, previous);
+            for (int base = 0; base < 4; base++) {
+                if ((motif[i] & (1 << base)) == 0)
+                    continue;
+                for (int c = 0; c < previous; c++)
+                    codes[count++] = (current[c] << 2) | base;
+            }
+        }
+        return count;
+    }
+
+    private static int chooseK(int length) {
+        //about one sampled position per bucket
+        final long samples = Math.max(1, length / STEP);
+        int k = MIN_K;
+        while (k < MAX_K && (1L << (2 * k)) < samples)
+            k++;
+        return k;
+    }
+}
@@ -0,0 +1,172 @@
+package sequence.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits memory mapped raw buffer to chunks on new lines without decoding it to strings.
+ * Every chunk is copied to buffer borrowed from pool, so it can be uppercased in place
+ * without touching the file. Splitting is done by line aligned byte ranges, RawBufferWindow reads such ranges
+ * (splitting stops below twice minSplit) as whole chunks in fork join subtasks so pool workers get equal amount of data.
+ */
+final class RawBufferSpliterator implements Spliterator<ByteBuffer> {
+    private static final byte NEW_LINE = '\n';
+    private static final int MAX_WINDOW = 1 << 30;//mapping can not be bigger than int and we do not need it to be
+
+    private final FileChannel channel;
+    private final ChunkBufferPool pool;
+    private final int maxChunk;
+    private final int minSplit;
+    private long position;
+    private final long end;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    /**
+     * @param channel  channel opened for read
+     * @param pool     pool to borrow chunk buffers from
+     * @param start    first byte of range (must be start of line)
+     * @param end      end of range (exclusive)
+     * @param maxChunk chunk without new line is cut at this length, use Integer.MAX_VALUE when lines must stay whole
+     * @param minSplit range smaller than twice this is not split anymore
+     */
+    RawBufferSpliterator(FileChannel channel, ChunkBufferPool pool, long start, long end, int maxChunk, int minSplit) {
+        this.channel = channel;
+        this.pool = pool;
+        this.position = start;
+        this.end = end;
+        this.maxChunk = maxChunk;
+        this.minSplit = minSplit;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+        while (position < end) {
+            if (window == null || position < windowStart || position >= windowStart + window.limit())
+                map(position);
+            final int from = (int) (position - windowStart);
+            final int limit = (int) Math.min(window.limit(), (long) from + maxChunk);
+            final int newLine = indexOfNewLine(window, from, limit);
+            if (newLine < 0 && limit == window.limit() && limit - from < maxChunk && from > 0
+                    && windowStart + window.limit() < end) {
+                //line continues behind window... move window to line start and try again
+                map(position);
+                continue;
+            }
+            final int to = newLine < 0 ? limit : newLine;
+            position = windowStart + to + (newLine < 0 ? 0 : 1);
+            if (to > from) {
+                action.accept(copy(from, to));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public RawBufferSpliterator trySplit() {
+        if (end - position < 2L * minSplit)
+            return null;
+        final long middle = position + (end - position) / 2;
+        long splitAt = nextLineStart(middle, maxChunk == Integer.MAX_VALUE ? end : Math.min(end, middle + maxChunk));
+        if (splitAt < 0) {
+            if (maxChunk == Integer.MAX_VALUE)
+                return null;//lines must stay whole and there is no new line behind middle
+            splitAt = middle;
+        }
+        if (splitAt >= end)
+            return null;
+        final RawBufferSpliterator prefix = new RawBufferSpliterator(channel, pool, position, splitAt, maxChunk, minSplit);
+        position = splitAt;
+        return prefix;
+    }
+
+    /**
+     * Reads rest of range at once (positional read, so ranges of one channel can be read by several threads)
+     *
+     * @param target buffer with exactly estimateSize bytes remaining, it is filled from its position
+     */
+    void readRange(ByteBuffer target) {
+        final int length = (int) (end - position);
+        final int start = target.position();
+        try {
+            while (target.position() - start < length) {
+                if (channel.read(target, position + target.position() - start) < 0)
+                    throw new IOException("Raw buffer ends before end of range");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Reading of raw buffer failed", e);
+        }
+        position = end;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - position;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private void map(long from) {
+        try {
+            windowStart = from;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(end - from, MAX_WINDOW));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Mapping of raw buffer failed", e);
+        }
+    }
+
+    private ByteBuffer copy(int from, int to) {
+        final ByteBuffer source = window.duplicate();
+        source.position(from);
+        source.limit(to);
+        final ByteBuffer chunk = pool.acquire(to - from);
+        chunk.put(source);
+        chunk.flip();
+        return chunk;
+    }
+
+    /**
+     * finds start of next line by reading channel (it is called only few times per split so mapping is not worth it)
+     *
+     * @return position behind new line or -1 if there is none before limit
+     */
+    private long nextLineStart(long from, long limit) {
+        final ByteBuffer probe = ByteBuffer.allocate(8192);
+        long offset = from;
+        try {
+            while (offset < limit) {
+                probe.clear();
+                if (limit - offset < probe.capacity())
+                    probe.limit((int) (limit - offset));
+                int read = channel.read(probe, offset);
+                if (read <= 0)
+                    return -1;
+                int newLine = indexOfNewLine(probe, 0, read);
+                if (newLine >= 0)
+                    return offset + newLine + 1;
+                offset += read;
+            }
+            return -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Reading of raw buffer failed", e);
+        }
+    }
+
+    private static int indexOfNewLine(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == NEW_LINE)
+                return i;
+        }
+        return -1;
+    }
+}
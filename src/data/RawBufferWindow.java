@@ -0,0 +1,141 @@
+package sequence.data;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+/**
+ * Parallel transformation of raw buffer with results in order of raw buffer.
+ * Raw buffer is split lazily (front first) to line aligned byte ranges, every range is read as one chunk and
+ * transformed by fork join subtask, iterator returns transformed chunks in order so writer sees same data
+ * as from sequential stream.
+ * <p>
+ * At most window ranges are in flight and lease of every range is reserved in memory governor before its subtask
+ * is forked, so subtasks never wait for memory. Window waits for budget only when it holds nothing, otherwise
+ * it just stops growing (waiting for memory held by its own unwritten chunks would deadlock concurrent imports).
+ * Is not thread save (it is consumed by one writer)
+ */
+final class RawBufferWindow implements Iterator<ByteBuffer>, Closeable {
+    private final Deque<RawBufferSpliterator> ranges = new ArrayDeque<>();//rest of raw buffer, front first
+    private final Deque<ForkJoinTask<List<ByteBuffer>>> inFlight = new ArrayDeque<>();
+    private final ChunkBufferPool pool;
+    private final ImportMemoryGovernor governor;
+    private final Function<ByteBuffer, List<ByteBuffer>> transform;
+    private final int window;
+    private Iterator<ByteBuffer> current = Collections.emptyIterator();//transformed chunks of head range
+
+    /**
+     * @param raw       whole raw buffer
+     * @param pool      pool chunks are borrowed from (its governor is used for reservations)
+     * @param governor  governor of pool
+     * @param transform transformation of one chunk (it runs concurrently in fork join pool of caller)
+     * @param window    maximal number of ranges in flight
+     */
+    RawBufferWindow(RawBufferSpliterator raw, ChunkBufferPool pool, ImportMemoryGovernor governor,
+                    Function<ByteBuffer, List<ByteBuffer>> transform, int window) {
+        this.ranges.add(raw);
+        this.pool = pool;
+        this.governor = governor;
+        this.transform = transform;
+        this.window = Math.max(1, window);
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        while (!current.hasNext()) {
+            final ForkJoinTask<List<ByteBuffer>> head = inFlight.pollFirst();
+            if (head == null)
+                return false;
+            current = head.join().iterator();
+            fill();
+        }
+        return true;
+    }
+
+    @Override
+    public ByteBuffer next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return current.next();
+    }
+
+    /**
+     * Gives chunks that were not returned back to pool (subtasks in flight are finished first)
+     */
+    @Override
+    public void close() {
+        while (current.hasNext())
+            pool.release(current.next());
+        ForkJoinTask<List<ByteBuffer>> task;
+        while ((task = inFlight.pollFirst()) != null) {
+            try {
+                for (ByteBuffer chunk : task.join())
+                    pool.release(chunk);
+            } catch (RuntimeException e) {
+                //failed subtask already gave its chunk back
+            }
+        }
+    }
+
+    private void fill() {
+        while (inFlight.size() < window) {
+            final RawBufferSpliterator range = nextRange();
+            if (range == null)
+                return;
+            final int size = Math.toIntExact(range.estimateSize());
+            if (size == 0)
+                continue;
+            final long lease = pool.leaseBytes(size);
+            final long reserved = inFlight.isEmpty() && !current.hasNext()
+                    ? governor.reserve(lease)
+                    : governor.reserveNow(lease);
+            if (reserved == 0) {
+                ranges.addFirst(range);//budget is exhausted, window is written first
+                return;
+            }
+            inFlight.addLast(ForkJoinTask.adapt(() -> transformRange(range, size, reserved)).fork());
+        }
+    }
+
+    /**
+     * @return first range of rest of raw buffer that can not be split anymore or null at end of raw buffer
+     */
+    private RawBufferSpliterator nextRange() {
+        RawBufferSpliterator range = ranges.pollFirst();
+        if (range == null)
+            return null;
+        RawBufferSpliterator prefix;
+        while ((prefix = range.trySplit()) != null) {
+            ranges.addFirst(range);
+            range = prefix;
+        }
+        return range;
+    }
+
+    private List<ByteBuffer> transformRange(RawBufferSpliterator range, int size, long reserved) {
+        final ByteBuffer chunk = pool.acquireReserved(size, reserved);
+        final List<ByteBuffer> transformed;
+        try {
+            range.readRange(chunk);
+            chunk.flip();
+            transformed = transform.apply(chunk);
+        } catch (RuntimeException e) {
+            pool.release(chunk);
+            throw e;
+        }
+        for (ByteBuffer result : transformed) {
+            if (result == chunk)
+                return transformed;
+        }
+        pool.release(chunk);//transformation replaced chunk by other buffers
+        return transformed;
+    }
+}
@@ -0,0 +1,442 @@
+package sequence.data;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append only store of small buffers in internal format. Buffers are packed to big segment files
+ * and their offsets are kept in index (append only log replayed on start), so storing millions of small sequences
+ * does not cost one file (inode, open, close, directory lookup) per sequence and bulk imports are sequential writes.
+ * Deleted buffers are only marked in index, compaction moves live buffers out of sparse segments and deletes them.
+ * Compaction copies buffers to its own segments outside of store lock, so appends and deletes are not blocked by it.
+ * Is thread save
+ */
+@Slf4j
+final class SegmentStore implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX = "segments.idx";
+    private static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+    private static final int RECORD_SIZE = 8 + 8 + 4 + 8 + 4;//uuid, segment, offset, length
+    private static final int REPLAY_BLOCK = RECORD_SIZE * 4096;
+    private static final int DELETED = -1;
+
+    private final Path dir;
+    private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+    private final ReadWriteLock segmentFiles = new ReentrantReadWriteLock();//readers open files, compaction deletes them
+    private final Map<Integer, SharedChannel> readers = new HashMap<>();//guarded by itself
+    private final Object compaction = new Object();//only one compaction runs at time
+
+    //following are guarded by this
+    private FileChannel index;
+    private long indexRecords;
+    private FileChannel active;
+    private int activeSegment;
+    private long activeSize;
+    private int nextSegment;//segments are numbered for active one and for compaction targets from here
+
+    /**
+     * Location of buffer in segment
+     */
+    static final class Entry {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Entry(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Opened segment limited to one buffer, must be closed
+     */
+    static final class Region implements Closeable {
+        final FileChannel channel;
+        final long offset;
+        final long length;
+        private final Closeable release;
+        private boolean closed;
+
+        /**
+         * Region over its own channel, channel is closed with region
+         */
+        Region(FileChannel channel, long offset, long length) {
+            this(channel, offset, length, channel);
+        }
+
+        private Region(FileChannel channel, long offset, long length, Closeable release) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.release = release;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            release.close();
+        }
+    }
+
+    /**
+     * Read channel of segment shared by all readers (reads are positional so they do not interfere),
+     * it is closed when its segment is deleted and last reader is done with it
+     */
+    private static final class SharedChannel {
+        final FileChannel channel;
+        int users;//guarded by readers
+        boolean retired;//guarded by readers
+
+        SharedChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Opens store in dir (creates it if it does not exist) and replays index
+     */
+    SegmentStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        this.index = FileChannel.open(dir.resolve(INDEX), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //every segment is listed and stat-ed once, not once per indexed buffer
+        final Map<Integer, Long> segmentSizes = new HashMap<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : segments)
+                segmentSizes.put(segmentNumber(segment), Files.size(segment));
+        }
+        replayIndex(segmentSizes);
+        int last = 0;
+        for (int segment : segmentSizes.keySet())
+            last = Math.max(last, segment);
+        nextSegment = last + 1;
+        if (last == 0 || segmentSizes.get(last) >= MAX_SEGMENT_SIZE)
+            openActive(nextSegment++);
+        else
+            openActive(last);
+    }
+
+    boolean contains(UUID bufferId) {
+        return entries.containsKey(bufferId);
+    }
+
+    /**
+     * @return location of buffer or null if it is not in store
+     */
+    Entry locate(UUID bufferId) {
+        return entries.get(bufferId);
+    }
+
+    /**
+     * @param segment segment buffer was appended to
+     * @return files that must be forced to make appended buffer durable
+     */
+    List<Path> durabilityFiles(Path segment) {
+        return Arrays.asList(segment, dir.resolve(INDEX), dir);
+    }
+
+    Path segmentPath(int segment) {
+        return dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Opens buffer for reading on shared channel of its segment
+     * (region stays readable even if compaction deletes segment meanwhile)
+     *
+     * @return opened region or null if buffer is not in store
+     */
+    Region open(UUID bufferId) throws IOException {
+        segmentFiles.readLock().lock();
+        try {
+            final Entry entry = entries.get(bufferId);
+            if (entry == null)
+                return null;
+            final SharedChannel shared = acquireReader(entry.segment);
+            return new Region(shared.channel, entry.offset, entry.length, () -> releaseReader(shared));
+        } finally {
+            segmentFiles.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends buffer to active segment, data are written before index so crash never leaves index pointing to nothing
+     *
+     * @param bufferId id of buffer
+     * @param data     data from position to limit
+     * @param force    segment and index are forced to disk before return
+     * @return path of segment buffer was written to
+     */
+    synchronized Path append(UUID bufferId, ByteBuffer data, boolean force) throws IOException {
+        assert !entries.containsKey(bufferId) : "Sequence buffer data can't by overridden.";
+        if (activeSize + data.remaining() > MAX_SEGMENT_SIZE && activeSize > 0)
+            openActive(nextSegment++);
+        final Entry entry = new Entry(activeSegment, activeSize, data.remaining());
+        while (data.hasRemaining())
+            activeSize += active.write(data, activeSize);
+        if (force)
+            active.force(false);
+        writeRecord(bufferId, entry);
+        if (force)
+            index.force(false);
+        entries.put(bufferId, entry);
+        return segmentPath(activeSegment);
+    }
+
+    /**
+     * Marks buffer as deleted, its space is reclaimed by compaction
+     *
+     * @return false if buffer was not in store
+     */
+    synchronized boolean delete(UUID bufferId) throws IOException {
+        if (entries.remove(bufferId) == null)
+            return false;
+        writeRecord(bufferId, new Entry(DELETED, 0, DELETED));
+        return true;
+    }
+
+    /**
+     * Moves live buffers out of segments that are more than half empty and deletes those segments,
+     * index is rewritten when most of its records are obsolete.
+     * Buffers are copied to new segments without holding store lock, only their index records are swapped under it
+     * (buffer deleted meanwhile is not swapped and its copy is reclaimed by next compaction).
+     */
+    void compact() throws IOException {
+        synchronized (compaction) {
+            final List<Map.Entry<UUID, Entry>> toMove = new ArrayList<>();
+            final Set<Integer> sparse = new HashSet<>();
+            synchronized (this) {
+                final Map<Integer, Long> live = new HashMap<>();
+                for (Entry entry : entries.values())
+                    live.merge(entry.segment, (long) entry.length, Long::sum);
+                try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                    for (Path segment : segments) {
+                        int number = segmentNumber(segment);
+                        if (number != activeSegment && live.getOrDefault(number, 0L) * 2 < Files.size(segment))
+                            sparse.add(number);
+                    }
+                }
+                for (Map.Entry<UUID, Entry> item : entries.entrySet()) {
+                    if (sparse.contains(item.getValue().segment))
+                        toMove.add(new AbstractMap.SimpleImmutableEntry<>(item.getKey(), item.getValue()));
+                }
+            }
+            if (!sparse.isEmpty()) {
+                final Map<Entry, Entry> relocated = new IdentityHashMap<>();
+                long moved = 0;
+                FileChannel target = null;
+                int targetSegment = 0;
+                long targetSize = 0;
+                try {
+                    for (Map.Entry<UUID, Entry> item : toMove) {
+                        final Entry entry = item.getValue();
+                        if (target == null || (targetSize + entry.length > MAX_SEGMENT_SIZE && targetSize > 0)) {
+                            if (target != null) {
+                                target.force(false);//moved data must be on disk before their only other copy is gone
+                                target.close();
+                            }
+                            synchronized (this) {
+                                targetSegment = nextSegment++;
+                            }
+                            target = FileChannel.open(segmentPath(targetSegment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                            targetSize = 0;
+                        }
+                        //sparse segments are deleted only by this compaction so their readers can not be retired meanwhile
+                        final SharedChannel source = acquireReader(entry.segment);
+                        try {
+                            long copied = 0;
+                            while (copied < entry.length)
+                                copied += source.channel.transferTo(entry.offset + copied, entry.length - copied,
+                                        target.position(targetSize + copied));
+                        } finally {
+                            releaseReader(source);
+                        }
+                        relocated.put(entry, new Entry(targetSegment, targetSize, entry.length));
+                        targetSize += entry.length;
+                        moved += entry.length;
+                    }
+                    if (target != null)
+                        target.force(false);
+                } finally {
+                    if (target != null)
+                        target.close();
+                }
+                synchronized (this) {
+                    for (Map.Entry<UUID, Entry> item : toMove) {
+                        //buffer deleted meanwhile stays deleted
+                        if (entries.get(item.getKey()) != item.getValue())
+                            continue;
+                        final Entry moveTo = relocated.get(item.getValue());
+                        writeRecord(item.getKey(), moveTo);
+                        entries.put(item.getKey(), moveTo);
+                    }
+                    index.force(false);
+                }
+                segmentFiles.writeLock().lock();
+                try {
+                    for (int segment : sparse) {
+                        retireReader(segment);
+                        Files.deleteIfExists(segmentPath(segment));
+                    }
+                } finally {
+                    segmentFiles.writeLock().unlock();
+                }
+                log.info("Compaction of sequence segments moved {} bytes and deleted {} segments", moved, sparse.size());
+            }
+            synchronized (this) {
+                if (indexRecords > 2L * entries.size() + 1024)
+                    rewriteIndex();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            synchronized (readers) {
+                for (SharedChannel shared : readers.values())
+                    shared.channel.close();
+                readers.clear();
+            }
+            active.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    private SharedChannel acquireReader(int segment) throws IOException {
+        synchronized (readers) {
+            SharedChannel shared = readers.get(segment);
+            //channel is closed by interrupt of any thread that used it, such one is replaced
+            if (shared == null || !shared.channel.isOpen()) {
+                shared = new SharedChannel(FileChannel.open(segmentPath(segment), StandardOpenOption.READ));
+                readers.put(segment, shared);
+            }
+            shared.users++;
+            return shared;
+        }
+    }
+
+    private void releaseReader(SharedChannel shared) throws IOException {
+        synchronized (readers) {
+            if (--shared.users == 0 && shared.retired)
+                shared.channel.close();
+        }
+    }
+
+    /**
+     * Closes shared channel of segment that is being deleted (when its last reader is done), called under write lock
+     */
+    private void retireReader(int segment) throws IOException {
+        synchronized (readers) {
+            final SharedChannel shared = readers.remove(segment);
+            if (shared == null)
+                return;
+            shared.retired = true;
+            if (shared.users == 0)
+                shared.channel.close();
+        }
+    }
+
+    /**
+     * @param segmentSizes sizes of existing segments by their numbers
+     */
+    private void replayIndex(Map<Integer, Long> segmentSizes) throws IOException {
+        final long size = index.size();
+        final long complete = size - size % RECORD_SIZE;//record torn by crash is ignored
+        final ByteBuffer block = ByteBuffer.allocate(REPLAY_BLOCK);
+        for (long position = 0; position < complete; position += block.limit()) {
+            block.clear();
+            block.limit((int) Math.min(REPLAY_BLOCK, complete - position));
+            while (block.hasRemaining())
+                index.read(block, position + block.position());
+            block.flip();
+            while (block.hasRemaining()) {
+                final UUID bufferId = new UUID(block.getLong(), block.getLong());
+                final Entry entry = new Entry(block.getInt(), block.getLong(), block.getInt());
+                if (entry.length == DELETED)
+                    entries.remove(bufferId);
+                else
+                    entries.put(bufferId, entry);
+            }
+        }
+        indexRecords = complete / RECORD_SIZE;
+        if (complete != size) {
+            log.warn("Index of sequence segments ends with incomplete record, it is dropped");
+            index.truncate(complete);
+        }
+        //buffers that were indexed but their data did not make it to disk are dropped
+        entries.entrySet().removeIf(item ->
+                segmentSizes.getOrDefault(item.getValue().segment, -1L) < item.getValue().offset + item.getValue().length);
+    }
+
+    private void writeRecord(UUID bufferId, Entry entry) throws IOException {
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(bufferId.getMostSignificantBits()).putLong(bufferId.getLeastSignificantBits())
+                .putInt(entry.segment).putLong(entry.offset).putInt(entry.length);
+        record.flip();
+        final long position = indexRecords * RECORD_SIZE;
+        while (record.hasRemaining())
+            index.write(record, position + record.position());
+        indexRecords++;
+    }
+
+    private void rewriteIndex() throws IOException {
+        final Path rewritten = dir.resolve(INDEX + ".tmp");
+        final FileChannel old = index;
+        index = FileChannel.open(rewritten, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexRecords = 0;
+        for (Map.Entry<UUID, Entry> item : entries.entrySet())
+            writeRecord(item.getKey(), item.getValue());
+        index.force(false);
+        index.close();
+        old.close();
+        Files.move(rewritten, dir.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = FileChannel.open(dir.resolve(INDEX), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void openActive(int segment) throws IOException {
+        if (active != null) {
+            active.force(false);//segment is not written anymore, its buffers must not be lost when it is closed
+            active.close();
+        }
+        activeSegment = segment;
+        final boolean created = Files.notExists(segmentPath(segment));
+        active = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = active.size();
+        if (created)
+            GroupCommitFlusher.force(dir);//so forcing of appended buffers never needs to force directory
+    }
+
+    private static int segmentNumber(Path segment) {
+        final String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -5,20 +5,33 @@ import sequence.Sequence;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.LineIterator;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.io.*;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.text.MessageFormat.format;
 
@@ -29,11 +42,30 @@ import static java.text.MessageFormat.format;
 @Component
 public class SequenceDataRepository {
     private static final String FASTA = "fasta";
+    private static final String FASTQ = "fastq";
+    private static final String FASTA_HEADER = "fasta-header";
     private static final String INTERNAL_FORMAT = "sequence-buffer";
+    private static final String MOTIF_INDEX = "motif-index";
     private static final int SHARED_CPU_CAHCE = 3000000;//this is suboptimal ... it would be beter to query for cache.. i am writing solution for this
     private static final int MAX_LINE_LENGTH = SHARED_CPU_CAHCE / Runtime.getRuntime().availableProcessors();
+    private static final int MAX_CHUNK_LENGTH = 2 * MAX_LINE_LENGTH;
+    private static final int RAW_BUFFER_WINDOW = 2 * Runtime.getRuntime().availableProcessors();//ranges transformed at once
+    private static final long DEFAULT_IMPORT_MEMORY_BUDGET = 256L * 1024 * 1024;
+    private static final int SMALL_SEQUENCE_LIMIT = 10 * 1024;//smaller sequences are packed to segments
+    private static final String SEGMENTS_DIR = "segments";
+    private static final String SHARDS_DIR = "shards";
+    private static final int SHARD_BOUNDARY_PROBE = 64 * 1024;
+    private static final int FASTA_LINES_PER_WRITE = 512;
+    private static final long DEFAULT_MOTIF_INDEX_MIN_LENGTH = 1024 * 1024;
 
     private Path storageDir;
+    private SegmentStore segmentStore;
+    private Durability durability = Durability.NONE;
+    private GroupCommitFlusher groupCommit;
+    private long motifIndexMinLength = DEFAULT_MOTIF_INDEX_MIN_LENGTH;
+
+    private ImportMemoryGovernor memoryGovernor = new ImportMemoryGovernor(DEFAULT_IMPORT_MEMORY_BUDGET);
+    private ChunkBufferPool bufferPool = new ChunkBufferPool(MAX_CHUNK_LENGTH, memoryGovernor);
 
     @Value("${sequence.dir}")
     public void setStorageDir(String storageDir) {
@@ -46,6 +78,56 @@ public class SequenceDataRepository {
                 throw new UnsupportedOperationException(format("Create sequence {0} dir failed.", storageDir), e);
             }
         }
+        try {
+            if (segmentStore != null)
+                segmentStore.close();
+            segmentStore = new SegmentStore(this.storageDir.resolve(SEGMENTS_DIR));
+        } catch (IOException e) {
+            throw new UnsupportedOperationException(format("Opening sequence segments in {0} failed.", storageDir), e);
+        }
+    }
+
+    /**
+     * @param durability how saved buffers are made durable (see makeDurable)
+     */
+    @Value("${sequence.durability:NONE}")
+    public synchronized void setDurability(Durability durability) {
+        this.durability = durability;
+        if (durability == Durability.GROUP_COMMIT && groupCommit == null)
+            groupCommit = new GroupCommitFlusher();
+    }
+
+    /**
+     * @param bytes memory budget of chunks in flight of all running imports
+     */
+    @Value("${sequence.import.memory-budget:268435456}")
+    public void setImportMemoryBudget(long bytes) {
+        this.memoryGovernor = new ImportMemoryGovernor(bytes);
+        this.bufferPool = new ChunkBufferPool(MAX_CHUNK_LENGTH, memoryGovernor);
+    }
+
+    /**
+     * @param length sequences shorter than this are not indexed for motif search (0 or less disables index)
+     */
+    @Value("${sequence.motif-index.min-length:1048576}")
+    public void setMotifIndexMinLength(long length) {
+        this.motifIndexMinLength = length;
+    }
+
+    /**
+     * @return governor of import memory (its reservations and waits are metrics of import backpressure)
+     */
+    public ImportMemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+
+    /**
+     * Returns chunk to pool it was borrowed from by loadRawBufferToStream or transformRawBuffer
+     *
+     * @param chunk chunk that is not used anymore
+     */
+    public void releaseBuffer(ByteBuffer chunk) {
+        bufferPool.release(chunk);
     }
 
     // precessing to make  lines long enough to be worth processing in parallel
@@ -64,11 +146,12 @@ public class SequenceDataRepository {
                 if (format.equals(FASTA)) {
                     boolean previousWasFASTA = false;
                     boolean isMultiFASTA = false;
+                    //comments never get to raw file so parallel transformation sees only sequence
+                    //they are kept in file order and saved once after the pass
+                    final StringBuilder header = new StringBuilder();
                     while (raw.hasNext()) {
                         line = raw.next();
-                        //found fasta comment that must be on separate line... reset counter put it on separate line
                         if (line.startsWith(">") || line.startsWith(";")) {
-                            currentLength = 0;
                             if (!previousWasFASTA) {
                                 previousWasFASTA = true;
                                 if (!isMultiFASTA) {
@@ -78,18 +161,12 @@ public class SequenceDataRepository {
                                             "Multi-FASTA format is not supported");
                                 }
                             } else {
-                                //agregating fasta lines on one line to make extraction in stream stateless
-                                // look here
-                                //https://docs.oracle.com/javase/tutorial/collections/streams/parallelism.html#stateful_lambda_expressions
-                                writer.write("\0");
+                                //\0 replaces new lines in comment (same format as comment extracted from stream)
+                                header.append('\0');
                             }
-
-                            writer.write(line);
+                            header.append(line);
                         } else {
-                            if (previousWasFASTA) {
-                                previousWasFASTA = false;
-                                writer.write("\n");
-                            }
+                            previousWasFASTA = false;
                             currentLength += line.length();
                             if (currentLength >= MAX_LINE_LENGTH) {
                                 writer.write("\n");
@@ -98,6 +175,39 @@ public class SequenceDataRepository {
                             writer.write(line);
                         }
                     }
+                    if (header.length() > 0)
+                        Files.write(getPath(bufferId, FASTA_HEADER), header.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+                } else if (format.equals(FASTQ)) {
+                    //whole 4 line records are packed on one line and their lines are joined with \0
+                    //so splitting stream on new lines never splits record between parallel chunks
+                    int recordLine = 0;
+                    while (raw.hasNext()) {
+                        line = raw.next();
+                        if (recordLine == 0) {
+                            if (line.isEmpty())
+                                continue;//blank lines between records are tolerated
+                            if (!line.startsWith("@"))
+                                throw new UnsupportedOperationException("Illegal input detected!\n" +
+                                        "FASTQ record must start with '@'");
+                            if (currentLength >= MAX_LINE_LENGTH) {
+                                writer.write("\n");
+                                currentLength = 0;
+                            } else if (currentLength > 0) {
+                                writer.write("\0");
+                            }
+                        } else {
+                            if (recordLine == 2 && !line.startsWith("+"))
+                                throw new UnsupportedOperationException("Illegal input detected!\n" +
+                                        "FASTQ record separator '+' expected");
+                            writer.write("\0");
+                        }
+                        currentLength += line.length();
+                        writer.write(line);
+                        recordLine = (recordLine + 1) & 3;
+                    }
+                    if (recordLine != 0)
+                        throw new UnsupportedOperationException("Illegal input detected!\n" +
+                                "FASTQ file ends with truncated record");
                 } else {// plain format 
                     while (raw.hasNext()) {
                         line = raw.next();
@@ -114,6 +224,7 @@ public class SequenceDataRepository {
         } catch (Exception e) {
             try {
                 Files.delete(path);
+                Files.deleteIfExists(getPath(bufferId, FASTA_HEADER));
             } catch (IOException ex) {
                 ex = new IOException("Exeption during emergency deletion of partially written uploaded file " +
                         "exception encountered", ex);
@@ -129,10 +240,146 @@ public class SequenceDataRepository {
         }
     }
 
-    public Stream<String> loadRawBufferToStream(Sequence sequence, String format) {
+    /**
+     * Streams raw buffer as chunks of memory mapped file (no decoding to strings)
+     * chunks are borrowed from buffer pool so they can be transformed in place,
+     * every chunk must be returned by releaseBuffer.
+     *
+     * @param sequence sequence which raw buffer is loaded
+     * @param format   format of raw buffer
+     * @return stream of chunks split on new lines, it must be closed afterwards
+     */
+    public Stream<ByteBuffer> loadRawBufferToStream(Sequence sequence, String format) {
         try {
             Path file = getPath(sequence.getBufferId(), format);
-            return Files.lines(file);
+            final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            //FASTQ records must stay whole, everything else is only sequence so it can be cut anywhere
+            final int maxChunk = format.equals(FASTQ) ? Integer.MAX_VALUE : MAX_CHUNK_LENGTH;
+            try {
+                final long start = format.equals(FASTA) ? legacyFASTACommentLength(sequence.getBufferId()) : 0;
+                return StreamSupport.stream(new RawBufferSpliterator(channel, bufferPool, start, channel.size(), maxChunk, MAX_LINE_LENGTH), false)
+                        .onClose(() -> {
+                            try {
+                                channel.close();
+                            } catch (IOException e) {
+                                log.warn("can't close raw buffer channel.", e);
+                            }
+                        });
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+    /**
+     * Transforms raw buffer in parallel (see RawBufferWindow): raw buffer is split to line aligned byte ranges,
+     * every range is read to one chunk borrowed from buffer pool and transformed by fork join subtask
+     * (in pool of caller), transformed chunks are streamed in order of raw buffer.
+     * Every chunk must be returned by releaseBuffer.
+     *
+     * @param sequence  sequence which raw buffer is transformed
+     * @param format    format of raw buffer
+     * @param transform transformation of one chunk, it is called concurrently
+     *                  (chunk of FASTQ can contain several packed lines separated by new line)
+     * @return ordered stream of transformed chunks, it must be closed afterwards
+     */
+    public Stream<ByteBuffer> transformRawBuffer(Sequence sequence, String format, Function<ByteBuffer, List<ByteBuffer>> transform) {
+        try {
+            Path file = getPath(sequence.getBufferId(), format);
+            final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            //FASTQ records must stay whole, everything else is only sequence so it can be cut anywhere
+            final int maxChunk = format.equals(FASTQ) ? Integer.MAX_VALUE : MAX_CHUNK_LENGTH;
+            try {
+                final long start = format.equals(FASTA) ? legacyFASTACommentLength(sequence.getBufferId()) : 0;
+                final ChunkBufferPool pool = bufferPool;
+                final RawBufferWindow window = new RawBufferWindow(
+                        new RawBufferSpliterator(channel, pool, start, channel.size(), maxChunk, MAX_LINE_LENGTH),
+                        pool, memoryGovernor, transform, RAW_BUFFER_WINDOW);
+                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(window, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                        .onClose(() -> {
+                            try {
+                                window.close();
+                            } finally {
+                                try {
+                                    channel.close();
+                                } catch (IOException e) {
+                                    log.warn("can't close raw buffer channel.", e);
+                                }
+                            }
+                        });
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+    /**
+     * Loads FASTA comment separated by saveRawBuffer
+     * (or first line of raw buffer saved by older version that kept comment there)
+     *
+     * @param bufferId id of raw buffer
+     * @return comment where \0 replaces new lines or null if there was none
+     */
+    public String loadFASTAHeader(UUID bufferId) {
+        Path file = getPath(bufferId, FASTA_HEADER);
+        try {
+            if (Files.exists(file))
+                return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            final long legacyLength = legacyFASTACommentLength(bufferId);
+            if (legacyLength == 0)
+                return null;
+            try (FileChannel channel = FileChannel.open(getPath(bufferId, FASTA), StandardOpenOption.READ)) {
+                final ByteBuffer comment = channel.map(FileChannel.MapMode.READ_ONLY, 0, legacyLength);
+                String legacy = StandardCharsets.UTF_8.decode(comment).toString();
+                return legacy.endsWith("\n") ? legacy : legacy + "\n";
+            }
+        } catch (IOException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+    /**
+     * Raw FASTA buffers saved before comments were moved to side file (they may still wait for batch import)
+     * have comment lines joined by \0 on their first line. Current raw buffers never start with comment.
+     *
+     * @param bufferId id of raw FASTA buffer
+     * @return length of leading comment line including its new line or 0 when there is none
+     */
+    private long legacyFASTACommentLength(UUID bufferId) throws IOException {
+        final Path raw = getPath(bufferId, FASTA);
+        if (Files.exists(getPath(bufferId, FASTA_HEADER)) || Files.notExists(raw))
+            return 0;
+        try (FileChannel channel = FileChannel.open(raw, StandardOpenOption.READ)) {
+            final ByteBuffer probe = ByteBuffer.allocate(SHARD_BOUNDARY_PROBE);
+            long position = 0;
+            int read;
+            while ((read = channel.read(probe, position)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    final byte current = probe.get(i);
+                    if (position == 0 && i == 0 && current != '>' && current != ';')
+                        return 0;
+                    if (current == '\n')
+                        return position + i + 1;
+                }
+                position += read;
+                probe.clear();
+            }
+            return position;//only comment without sequence
+        }
+    }
+
+    /**
+     * @return size of raw buffer in bytes
+     */
+    public long getRawBufferSize(UUID bufferId, String format) {
+        try {
+            return Files.size(getPath(bufferId, format));
         } catch (IOException e) {
             throw new UnsupportedOperationException(e);
         }
@@ -142,35 +389,474 @@ public class SequenceDataRepository {
         Path file = getPath(bufferId, format);
         try {
             Files.delete(file);
+            if (format.equals(FASTA))
+                Files.deleteIfExists(getPath(bufferId, FASTA_HEADER));
         } catch (IOException e) {
             log.warn(format("Delete sequence data with format: {0} failed.", format), e);
         }
     }
     
-    // this method is heavyly optimized Josef Havranek
+    /**
+     * Path of raw buffer for processes that read it directly (workers of sharded import),
+     * all others should use loadRawBufferToStream.
+     */
+    public Path getRawBufferPath(UUID bufferId, String format) {
+        return getPath(bufferId, format);
+    }
+
+    /**
+     * Splits raw buffer to byte ranges that start at beginning of line so they can be processed independently
+     *
+     * @param bufferId id of raw buffer
+     * @param format   format of raw buffer (FASTQ is not supported, records span multiple lines)
+     * @param shards   number of ranges
+     * @return boundaries of ranges (shards + 1 values, range i is from boundaries[i] to boundaries[i + 1]),
+     * ranges may be empty when lines are longer than range
+     */
+    public long[] splitRawBuffer(UUID bufferId, String format, int shards) {
+        if (format.equals(FASTQ))
+            throw new IllegalArgumentException("FASTQ raw buffer can not be split to ranges");
+        if (shards <= 0)
+            throw new IllegalArgumentException("Number of shards must be positive");
+        try (FileChannel channel = FileChannel.open(getPath(bufferId, format), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final long[] boundaries = new long[shards + 1];
+            final ByteBuffer probe = ByteBuffer.allocate(SHARD_BOUNDARY_PROBE);
+            boundaries[0] = format.equals(FASTA) ? legacyFASTACommentLength(bufferId) : 0;
+            boundaries[shards] = size;
+            for (int i = 1; i < shards; i++) {
+                long boundary = Math.max(boundaries[i - 1], size / shards * i);
+                //boundary moves behind next new line
+                boolean found = boundary == boundaries[i - 1];
+                while (!found && boundary < size) {
+                    probe.clear();
+                    final int read = channel.read(probe, boundary - 1);
+                    if (read <= 0)
+                        break;
+                    for (int j = 0; j < read && !found; j++) {
+                        if (probe.get(j) == '\n') {
+                            boundary += j;
+                            found = true;
+                        }
+                    }
+                    if (!found)
+                        boundary += read;
+                }
+                boundaries[i] = Math.min(boundary, size);
+            }
+            return boundaries;
+        } catch (IOException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+    /**
+     * @return directory (created if it does not exist) for shard outputs of sharded import of buffer
+     */
+    public Path getShardDir(UUID bufferId) {
+        final Path dir = storageDir.resolve(SHARDS_DIR).resolve(bufferId.toString());
+        try {
+            return Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UnsupportedOperationException(format("Create shard dir {0} failed.", dir), e);
+        }
+    }
+
+    /**
+     * Deletes shard outputs of sharded import of buffer
+     */
+    public void deleteShards(UUID bufferId) {
+        final Path dir = storageDir.resolve(SHARDS_DIR).resolve(bufferId.toString());
+        if (Files.notExists(dir))
+            return;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            log.warn(format("Delete shards of {0} failed.", bufferId), e);
+        }
+    }
+
     public Path save(UUID bufferId, Iterator<ByteBuffer> buffers) {
+        return save(bufferId, buffers, written -> {
+        });
+    }
+
+    /**
+     * saves buffers in internal format
+     *
+     * @param bufferId     id of buffer
+     * @param buffers      buffers to save in order
+     * @param whenWritten  called with every buffer after it was written (even if write failed) in order of buffers
+     * @return path to saved file
+     */
+    // this method is heavyly optimized Josef Havranek
+    public Path save(UUID bufferId, Iterator<ByteBuffer> buffers, Consumer<ByteBuffer> whenWritten) {
         Path file = getPath(bufferId, INTERNAL_FORMAT);
         assert Files.notExists(file) : "Sequence buffer data-file can't by overridden.";
-        try (FileChannel output = new FileOutputStream(file.toFile()).getChannel()) {
+        //small sequences are collected here and packed to segment, file is created only when this overflows
+        final ByteBuffer small = ByteBuffer.allocate(SMALL_SEQUENCE_LIMIT);
+        FileChannel output = null;
+        try {
+            ByteBuffer next;
             ByteBuffer current;
             while (buffers.hasNext()) {
-                current = buffers.next().asReadOnlyBuffer();//making sure we have independent counters on buffer
-                current.position(0);
-                output.write(current);
+                next = buffers.next();
+                try {
+                    current = next.asReadOnlyBuffer();//making sure we have independent counters on buffer
+                    current.position(0);
+                    if (output == null && current.remaining() <= small.remaining()) {
+                        small.put(current);
+                    } else {
+                        if (output == null) {
+                            output = new FileOutputStream(file.toFile()).getChannel();
+                            small.flip();
+                            output.write(small);
+                        }
+                        output.write(current);
+                    }
+                } finally {
+                    whenWritten.accept(next);
+                }
+            }
+            if (output == null) {
+                small.flip();
+                return segmentStore.append(bufferId, small, durability == Durability.PER_IMPORT);
             }
-            //try with resources closes file itself
+            if (durability == Durability.PER_IMPORT)
+                output.force(false);//forced by writer itself, reopened read only handle can not be forced everywhere
+            output.close();
             return file;
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {//runtime ones come from buffers (for example cancelled import)
             try {
+                if (output != null)
+                    output.close();
                 //delete unfinished file
-                Files.delete(file);
+                Files.deleteIfExists(file);
             } catch (IOException deleteFail) {
                 e.addSuppressed(new IOException("Exception In exception during emergency cleanup of incompletely written procesed file", deleteFail));
             }
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
             throw new UnsupportedOperationException("Exception during saving file", e);
         }
     }
 
+    /**
+     * saves shards already in internal format as one buffer, every shard is copied to its offset without copying
+     * it through JVM (FileChannel.transferFrom)
+     *
+     * @param bufferId id of buffer
+     * @param shards   shard files in order
+     * @param offsets  offsets of shards in buffer (shards + 1 values, last one is length of buffer),
+     *                 size of every shard must match its range
+     * @return path to saved file (it can be passed to makeDurable same way as path returned by save)
+     */
+    public Path saveShards(UUID bufferId, List<Path> shards, long[] offsets) {
+        if (offsets.length != shards.size() + 1)
+            throw new IllegalArgumentException("Every shard must have its offset and last offset must be length");
+        Path file = getPath(bufferId, INTERNAL_FORMAT);
+        assert Files.notExists(file) : "Sequence buffer data-file can't by overridden.";
+        final long length = offsets[shards.size()];
+        try {
+            if (length <= SMALL_SEQUENCE_LIMIT) {
+                final ByteBuffer small = ByteBuffer.allocate((int) length);
+                for (Path shard : shards)
+                    small.put(Files.readAllBytes(shard));
+                small.flip();
+                return segmentStore.append(bufferId, small, durability == Durability.PER_IMPORT);
+            }
+        } catch (IOException | BufferOverflowException e) {
+            throw new UnsupportedOperationException("Exception during saving shards", e);
+        }
+        try (FileChannel output = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < shards.size(); i++) {
+                try (FileChannel shard = FileChannel.open(shards.get(i), StandardOpenOption.READ)) {
+                    final long shardLength = offsets[i + 1] - offsets[i];
+                    if (shard.size() != shardLength)
+                        throw new IOException(format("Shard {0} has {1} bytes but {2} were expected",
+                                shards.get(i), shard.size(), shardLength));
+                    long copied = 0;
+                    while (copied < shardLength)
+                        copied += output.transferFrom(shard.position(copied), offsets[i] + copied, shardLength - copied);
+                }
+            }
+            if (durability == Durability.PER_IMPORT)
+                output.force(false);
+            return file;
+        } catch (IOException | RuntimeException e) {
+            try {
+                //delete unfinished file
+                Files.deleteIfExists(file);
+            } catch (IOException deleteFail) {
+                e.addSuppressed(new IOException("Exception In exception during emergency cleanup of incompletely written procesed file", deleteFail));
+            }
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            throw new UnsupportedOperationException("Exception during saving shards", e);
+        }
+    }
+
+    /**
+     * Makes buffer saved by save durable according to durability setting.
+     * Sequence pointing to buffer should be saved only after returned future completes,
+     * so crash never leaves sequence pointing to truncated buffer.
+     * With PER_IMPORT data were already forced by save, only directory entry of new file is forced here.
+     *
+     * @param bufferId id of saved buffer
+     * @param saved    path returned by save
+     * @return future completed when buffer is durable (immediately unless durability is GROUP_COMMIT)
+     */
+    public CompletableFuture<Void> makeDurable(UUID bufferId, Path saved) {
+        if (durability == Durability.NONE)
+            return CompletableFuture.completedFuture(null);
+        final boolean inSegment = segmentStore.contains(bufferId);
+        if (durability == Durability.GROUP_COMMIT)
+            return groupCommit.request(inSegment ? segmentStore.durabilityFiles(saved) : Arrays.asList(saved, storageDir));
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+        try {
+            //new segment forces its directory entry itself when it is created
+            if (!inSegment)
+                GroupCommitFlusher.force(storageDir);
+            durable.complete(null);
+        } catch (IOException e) {
+            durable.completeExceptionally(new UnsupportedOperationException("Forcing sequence buffer to disk failed", e));
+        }
+        return durable;
+    }
+
+    /**
+     * Opens buffer in internal format wherever it is stored (segment or its own file)
+     *
+     * @return opened region, must be closed
+     */
+    private SegmentStore.Region openInternal(UUID bufferId) throws IOException {
+        final SegmentStore.Region segment = segmentStore.open(bufferId);
+        if (segment != null)
+            return segment;
+        final FileChannel channel = FileChannel.open(getPath(bufferId, INTERNAL_FORMAT), StandardOpenOption.READ);
+        return new SegmentStore.Region(channel, 0, channel.size());
+    }
+
+    /**
+     * Streams whole buffer in internal format to target without copying it through JVM
+     *
+     * @return number of written bytes
+     */
+    public long exportInternal(UUID bufferId, WritableByteChannel target) {
+        return exportInternal(bufferId, 0, Long.MAX_VALUE, target);
+    }
+
+    /**
+     * Streams range of buffer in internal format to target without copying it through JVM (FileChannel.transferTo)
+     *
+     * @param from first exported base (from 0)
+     * @param to   end of range (exclusive), it is clamped to sequence length
+     * @return number of written bytes
+     */
+    public long exportInternal(UUID bufferId, long from, long to, WritableByteChannel target) {
+        checkExportRange(from, to);
+        try (SegmentStore.Region region = openInternal(bufferId)) {
+            final long start = Math.min(from, region.length);
+            final long end = Math.min(to, region.length);
+            long written = 0;
+            while (start + written < end)
+                written += region.channel.transferTo(region.offset + start + written, end - start - written, target);
+            return written;
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Exception during export of sequence", e);
+        }
+    }
+
+    /**
+     * Exports whole sequence as FASTA
+     *
+     * @see #exportFASTA(Sequence, int, long, long, WritableByteChannel)
+     */
+    public long exportFASTA(Sequence sequence, int lineWidth, WritableByteChannel target) {
+        return exportFASTA(sequence, lineWidth, 0, Long.MAX_VALUE, target);
+    }
+
+    /**
+     * Exports range of sequence as FASTA. Stored FASTA comment (or name) is header and new line is inserted every
+     * lineWidth bases. Lines are slices of mapped buffer written together with shared new line by gathering writes,
+     * so data are never copied to format them.
+     *
+     * @param sequence  sequence to export
+     * @param lineWidth bases per line (at most Integer.MAX_VALUE / 2)
+     * @param from      first exported base (from 0)
+     * @param to        end of range (exclusive), it is clamped to sequence length
+     * @param target    channel to write to (GatheringByteChannel is used as such)
+     * @return number of written bytes
+     */
+    public long exportFASTA(Sequence sequence, int lineWidth, long from, long to, WritableByteChannel target) {
+        if (lineWidth <= 0 || lineWidth > Integer.MAX_VALUE / 2)
+            throw new IllegalArgumentException("Line width of FASTA must be from 1 to " + Integer.MAX_VALUE / 2);
+        checkExportRange(from, to);
+        try (SegmentStore.Region region = openInternal(sequence.getBufferId())) {
+            long written = writeFully(target, new ByteBuffer[]{fastaHeader(sequence)}, 1);
+            final long start = Math.min(from, region.length);
+            final long end = Math.min(to, region.length);
+            //windows end on line boundary so no line is split between them
+            final long windowSize = (long) lineWidth * (Integer.MAX_VALUE / 2 / lineWidth);
+            final ByteBuffer newLine = ByteBuffer.allocateDirect(1).put((byte) '\n');
+            final ByteBuffer[] slots = new ByteBuffer[2 * FASTA_LINES_PER_WRITE];
+            for (int i = 1; i < slots.length; i += 2)
+                slots[i] = newLine.duplicate();
+
+            for (long windowStart = start; windowStart < end; windowStart += windowSize) {
+                final int windowLength = (int) Math.min(windowSize, end - windowStart);
+                final ByteBuffer window = region.channel.map(FileChannel.MapMode.READ_ONLY, region.offset + windowStart, windowLength);
+                for (int i = 0; i < slots.length; i += 2)
+                    slots[i] = window.duplicate();//slots are only repositioned for every batch of lines
+
+                int lineStart = 0;
+                while (lineStart < windowLength) {
+                    int used = 0;
+                    while (used < slots.length && lineStart < windowLength) {
+                        final int lineEnd = Math.min(lineStart + lineWidth, windowLength);
+                        slots[used].clear();
+                        slots[used].position(lineStart).limit(lineEnd);
+                        slots[used + 1].clear();
+                        used += 2;
+                        lineStart = lineEnd;
+                    }
+                    written += writeFully(target, slots, used);
+                }
+            }
+            return written;
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Exception during export of sequence", e);
+        }
+    }
+
+    private static void checkExportRange(long from, long to) {
+        if (from < 0 || from > to)
+            throw new IllegalArgumentException("Illegal export range from " + from + " to " + to);
+    }
+
+    private static ByteBuffer fastaHeader(Sequence sequence) {
+        String header = sequence.getFastaComment();
+        if (header == null || header.isEmpty())
+            header = ">" + (sequence.getName() == null ? sequence.getId() : sequence.getName());
+        header = header.replace('\0', '\n');
+        if (!header.endsWith("\n"))
+            header += "\n";
+        return ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long writeFully(WritableByteChannel target, ByteBuffer[] buffers, int length) throws IOException {
+        long written = 0;
+        if (target instanceof GatheringByteChannel) {
+            final GatheringByteChannel gathering = (GatheringByteChannel) target;
+            int first = 0;
+            while (first < length) {
+                written += gathering.write(buffers, first, length - first);
+                while (first < length && !buffers[first].hasRemaining())
+                    first++;
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                while (buffers[i].hasRemaining())
+                    written += target.write(buffers[i]);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Builds motif index of saved buffer when it is long enough to be worth it (see setMotifIndexMinLength).
+     * Failure is only logged, findMotif scans buffer without index.
+     *
+     * @param bufferId id of saved buffer
+     */
+    public void buildMotifIndex(UUID bufferId) {
+        if (motifIndexMinLength <= 0)
+            return;
+        try (SegmentStore.Region region = openInternal(bufferId)) {
+            if (region.length < motifIndexMinLength || region.length > Integer.MAX_VALUE)
+                return;
+            final long start = System.nanoTime();
+            //bucket tables are mapped but their dirty pages count to process memory same as chunks of imports
+            final ImportMemoryGovernor governor = memoryGovernor;
+            final long reserved = governor.reserve(MotifIndex.tableBytes((int) region.length));
+            try {
+                MotifIndex.build(region.channel.map(FileChannel.MapMode.READ_ONLY, region.offset, region.length),
+                        getPath(bufferId, MOTIF_INDEX));
+            } finally {
+                governor.release(reserved);
+            }
+            log.debug("Motif index of {} ({} bases) built in {} ms", bufferId, region.length,
+                    (System.nanoTime() - start) / 1000000);
+        } catch (IOException | RuntimeException e) {
+            log.warn(format("Building motif index of {0} failed.", bufferId), e);
+        }
+    }
+
+    /**
+     * Finds all occurrences of motif in buffer. Index (it answers motifs of any length) is used when buffer has one
+     * and motif is specific enough, otherwise buffer is scanned. Motif may contain IUPAC codes, they match concrete
+     * bases they stand for (ambiguous bases of sequence itself never match).
+     *
+     * @param bufferId id of buffer
+     * @param motif    motif in IUPAC codes
+     * @return sorted positions (from 0) of all occurrences, overlapping ones included
+     * @throws IllegalArgumentException when motif is empty or it is not nucleic
+     */
+    public long[] findMotif(UUID bufferId, String motif) {
+        final int[] masks = MotifIndex.parseMotif(motif);
+        try (SegmentStore.Region region = openInternal(bufferId)) {
+            if (region.length > Integer.MAX_VALUE)
+                throw new UnsupportedOperationException(format("Sequence {0} is too long for motif search.", bufferId));
+            final ByteBuffer data = region.channel.map(FileChannel.MapMode.READ_ONLY, region.offset, region.length);
+            final Path index = getPath(bufferId, MOTIF_INDEX);
+            if (Files.exists(index)) {
+                final long[] found = MotifIndex.search(data, index, masks);
+                if (found != null)
+                    return found;
+            }
+            return MotifIndex.scan(data, masks);
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Exception during motif search", e);
+        }
+    }
+
+    /**
+     * Deletes buffer in internal format (from segment or its own file) and its motif index
+     *
+     * @param bufferId id of buffer
+     */
+    public void deleteInternalBuffer(UUID bufferId) {
+        try {
+            Files.deleteIfExists(getPath(bufferId, MOTIF_INDEX));
+            if (!segmentStore.delete(bufferId))
+                Files.deleteIfExists(getPath(bufferId, INTERNAL_FORMAT));
+        } catch (IOException e) {
+            log.warn(format("Delete sequence data {0} failed.", bufferId), e);
+        }
+    }
+
+    /**
+     * Reclaims space of deleted small sequences
+     */
+    @Scheduled(fixedDelayString = "${sequence.segment.compaction-delay:3600000}")
+    public void compactSegments() {
+        try {
+            segmentStore.compact();
+        } catch (IOException e) {
+            log.error("Compaction of sequence segments failed.", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (groupCommit != null)
+            groupCommit.close();
+        if (segmentStore != null)
+            segmentStore.close();
+    }
+
     private Path getPath(UUID bufferId, String format) {
         String suffix = (Objects.equals(format, INTERNAL_FORMAT))
                 ? ""
@@ -0,0 +1,73 @@
+package sequence.inport;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per read statistics aggregated during FASTQ import.
+ * Is thread save, every parallel chunk adds its local sums only once so workers do not contend per read.
+ */
+public class FASTQStatistics {
+    private static final int PHRED_OFFSET = 33;
+
+    final private LongAdder reads = new LongAdder();
+    final private LongAdder bases = new LongAdder();
+    final private LongAdder qualitySum = new LongAdder();
+    final private LongAccumulator shortestRead = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    final private LongAccumulator longestRead = new LongAccumulator(Math::max, 0);
+
+    /**
+     * adds statistics of one chunk of records
+     *
+     * @param chunkReads      number of reads in chunk
+     * @param chunkBases      sum of read lengths (before trimming) in chunk
+     * @param chunkQuality    sum of phred scores in chunk (already decreased by offset)
+     * @param chunkShortest   shortest read in chunk
+     * @param chunkLongest    longest read in chunk
+     */
+    void add(long chunkReads, long chunkBases, long chunkQuality, long chunkShortest, long chunkLongest) {
+        if (chunkReads == 0)
+            return;
+        reads.add(chunkReads);
+        bases.add(chunkBases);
+        qualitySum.add(chunkQuality);
+        shortestRead.accumulate(chunkShortest);
+        longestRead.accumulate(chunkLongest);
+    }
+
+    /**
+     * @return phred offset used to decode quality lines (Sanger/Illumina 1.8+)
+     */
+    static int getPhredOffset() {
+        return PHRED_OFFSET;
+    }
+
+    public long getReadCount() {
+        return reads.sum();
+    }
+
+    public long getBaseCount() {
+        return bases.sum();
+    }
+
+    public long getShortestReadLength() {
+        return getReadCount() == 0 ? 0 : shortestRead.get();
+    }
+
+    public long getLongestReadLength() {
+        return longestRead.get();
+    }
+
+    public double getMeanReadLength() {
+        long readCount = getReadCount();
+        return readCount == 0 ? 0 : (double) getBaseCount() / readCount;
+    }
+
+    /**
+     * @return mean phred quality over all bases
+     */
+    public double getMeanQuality() {
+        long baseCount = getBaseCount();
+        return baseCount == 0 ? 0 : (double) qualitySum.sum() / baseCount;
+    }
+}
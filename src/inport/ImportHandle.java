@@ -0,0 +1,130 @@
+package sequence.inport;
+
+import sequence.Sequence;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Handle of running import. Allows to wait for result (without blocking thread that started import),
+ * to poll or subscribe for progress and to cancel import.
+ * Cancellation is cooperative: import stops before next chunk is read and partially written data are deleted,
+ * uploaded raw buffer is kept so cancelled import can be started again.
+ * Once import starts saving sequence (point of no return) it can not be cancelled anymore.
+ * Is thread save
+ */
+@Slf4j
+public class ImportHandle {
+    //cancelling of future itself cancels import too (only before point of no return)
+    private final CompletableFuture<Sequence> result = new CompletableFuture<Sequence>() {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return ImportHandle.this.cancel() && super.cancel(mayInterruptIfRunning);
+        }
+    };
+    private final AtomicLong bytesProcessed = new AtomicLong(0);
+    private final long bytesTotal;
+    private final List<BiConsumer<Long, Long>> progressListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled = false;
+    private boolean committed = false;//guarded by this
+
+    /**
+     * @param bytesTotal size of data to import (raw buffer size) or 0 when it is unknown
+     */
+    ImportHandle(long bytesTotal) {
+        this.bytesTotal = bytesTotal;
+    }
+
+    /**
+     * @return future completed with imported (and saved) sequence or with exception import failed on
+     */
+    public CompletableFuture<Sequence> getResult() {
+        return result;
+    }
+
+    public long getBytesProcessed() {
+        return bytesProcessed.get();
+    }
+
+    /**
+     * @return size of data to import or 0 when it is unknown
+     */
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    /**
+     * @return progress from 0 to 1 (or 0 when total size is unknown)
+     */
+    public double getProgress() {
+        return bytesTotal == 0 ? 0 : Math.min(1, (double) bytesProcessed.get() / bytesTotal);
+    }
+
+    /**
+     * Subscribes for progress, listener is called from import thread with processed and total bytes
+     * after every chunk so it should be fast.
+     *
+     * @param listener non null listener
+     */
+    public void addProgressListener(BiConsumer<Long, Long> listener) {
+        progressListeners.add(listener);
+    }
+
+    /**
+     * Requests cancellation of import
+     *
+     * @return false if import already finished or it is past point of no return
+     */
+    public synchronized boolean cancel() {
+        if (committed || result.isDone())
+            return false;
+        cancelled = true;
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void addProcessed(long bytes) {
+        final long processed = bytesProcessed.addAndGet(bytes);
+        for (BiConsumer<Long, Long> listener : progressListeners) {
+            try {
+                listener.accept(processed, bytesTotal);
+            } catch (RuntimeException e) {
+                log.warn("Import progress listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * @throws CancellationException when cancellation was requested
+     */
+    void checkCancelled() {
+        if (cancelled)
+            throw new CancellationException("Import was cancelled");
+    }
+
+    /**
+     * Marks point of no return, cancel has no effect afterwards
+     *
+     * @throws CancellationException when cancellation was requested before
+     */
+    synchronized void commit() {
+        checkCancelled();
+        committed = true;
+    }
+
+    void complete(Sequence sequence) {
+        result.complete(sequence);
+    }
+
+    void fail(Throwable e) {
+        result.completeExceptionally(e);
+    }
+}
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * @author Josef Havránek
@@ -32,35 +33,40 @@ class NucleicCounterService {
      * Count buffer in parallel thread pool in nonblocking way
      * Is thread save
      *
-     * @param toCount -- non null buffer to count nucleotides must be read only (not changed by other thread)
+     * @param toCount     -- non null buffer to count nucleotides (from 0 to limit) must not be changed by other thread
+     * @param whenCounted -- called with buffer when counting finished (buffer is not used by counter afterwards)
      */
-    void countBufferAsync(ByteBuffer toCount) {
+    void countBufferAsync(ByteBuffer toCount, Consumer<ByteBuffer> whenCounted) {
         runningTasks.incrementAndGet();
         SequenceImportPool.importPool.execute(() -> {
-                    toCount.position(0);
-                    if (toCount.capacity() < 200) {
-                        while (toCount.hasRemaining()) {
-                            //this is thread save since map itself is not modified
-                            counts.get(Nucleic.getFromInternalFormat(toCount.get())).incrementAndGet();
-                        }
-                    } else {
-                        final HashMap<Nucleic, AtomicInteger> local = new HashMap<>();
-                        Nucleic current;
-                        while (toCount.hasRemaining()) {
-                            current = Nucleic.getFromInternalFormat(toCount.get());
-                            if (local.containsKey(current))
-                                local.get(current).incrementAndGet();
-                            else {
-                                local.put(current, new AtomicInteger(1));
+                    try {
+                        toCount.position(0);
+                        if (toCount.limit() < 200) {
+                            while (toCount.hasRemaining()) {
+                                //this is thread save since map itself is not modified
+                                counts.get(Nucleic.getFromInternalFormat(toCount.get())).incrementAndGet();
+                            }
+                        } else {
+                            final HashMap<Nucleic, AtomicInteger> local = new HashMap<>();
+                            Nucleic current;
+                            while (toCount.hasRemaining()) {
+                                current = Nucleic.getFromInternalFormat(toCount.get());
+                                if (local.containsKey(current))
+                                    local.get(current).incrementAndGet();
+                                else {
+                                    local.put(current, new AtomicInteger(1));
+                                }
+                            }
+                            for (Nucleic key : local.keySet()) {
+                                //this is thread save since map itself is not modified
+                                counts.get(key).addAndGet(local.get(key).get());
                             }
-                        }
-                        for (Nucleic key : local.keySet()) {
-                            //this is thread save since map itself is not modified
-                            counts.get(key).addAndGet(local.get(key).get());
-                        }
 
+                        }
+                    } finally {
+                        whenCounted.accept(toCount);
+                        runningTasks.decrementAndGet();
                     }
-                    runningTasks.decrementAndGet();
                 }
         );
     }
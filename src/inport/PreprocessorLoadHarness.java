@@ -0,0 +1,387 @@
+package sequence.inport;
+
+import sequence.Sequence;
+import sequence.data.Durability;
+import sequence.data.SequenceDataRepository;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Standalone load harness of whole preprocesor (saveRawBuffer, batchProcessor, save) to make speed graphs
+ * reproducible and to catch speed regressions.
+ * It generates synthetic FASTA and plain inputs, imports them with 1..N concurrent imports into temporary
+ * sequence dir (sequence repository is stub) and reports MB/s, p50/p99 import latency,
+ * allocation rate and peak RSS of every scenario. With baseline it exits with 1 when throughput drops more than allowed.
+ * With shards every import is split between that many local ShardWorker processes (ShardedImportCoordinator).
+ * <p>
+ * Usage: PreprocessorLoadHarness [--sizes 1M,64M,1G] [--formats fasta,plain] [--concurrency 1,2,4]
+ * [--imports 4] [--dirtiness 0.01] [--durability NONE] [--shards 0] [--baseline file] [--record-baseline]
+ * [--max-regression 10] [--dir dir]
+ */
+public class PreprocessorLoadHarness {
+    private static final String FASTA = "fasta";
+    private static final String PLAIN = "plain";
+    private static final int LINE_WIDTH = 80;
+    private static final byte[] NUCLEIC = "ACGTacgtN".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DIRT = "0123456789 -*.x".getBytes(StandardCharsets.US_ASCII);
+
+    private final Map<String, String> options;
+    private final Path workDir;
+    private final RawDataProcessor processor;
+    private final ShardedImportCoordinator coordinator;
+    private final int shards;
+    private final SequenceDataRepository dataRepository;
+
+    private PreprocessorLoadHarness(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.workDir = options.containsKey("dir")
+                ? Files.createDirectories(Paths.get(options.get("dir")))
+                : Files.createTempDirectory("preprocesor-harness");
+        this.dataRepository = new SequenceDataRepository();
+        dataRepository.setStorageDir(workDir.resolve("sequences").toString());
+        dataRepository.setDurability(Durability.valueOf(options.getOrDefault("durability", "NONE")));
+        //stub repository, harness measures only preprocesor
+        this.processor = new RawDataProcessor(sequence -> {
+        }, dataRepository);
+        this.coordinator = new ShardedImportCoordinator(processor, dataRepository);
+        this.shards = Integer.parseInt(options.getOrDefault("shards", "0"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = parseOptions(args);
+        final PreprocessorLoadHarness harness = new PreprocessorLoadHarness(options);
+        final boolean regressed;
+        try {
+            regressed = harness.run();
+        } finally {
+            harness.dataRepository.close();
+            if (!options.containsKey("dir"))
+                harness.deleteWorkDir();
+        }
+        System.exit(regressed ? 1 : 0);
+    }
+
+    /**
+     * @return true if throughput regressed against baseline
+     */
+    private boolean run() throws Exception {
+        final List<Long> sizes = new ArrayList<>();
+        for (String size : options.getOrDefault("sizes", "1M,64M").split(","))
+            sizes.add(parseSize(size));
+        final List<String> formats = Arrays.asList(options.getOrDefault("formats", FASTA + "," + PLAIN).split(","));
+        final List<Integer> concurrency = new ArrayList<>();
+        for (String level : options.getOrDefault("concurrency", "1," + Runtime.getRuntime().availableProcessors()).split(","))
+            concurrency.add(Integer.parseInt(level.trim()));
+        final int imports = Integer.parseInt(options.getOrDefault("imports", "4"));
+        final double dirtiness = Double.parseDouble(options.getOrDefault("dirtiness", "0.01"));
+
+        final Properties measured = new Properties();
+        System.out.println("format\tsize\tthreads\tMB/s\tp50 ms\tp99 ms\talloc MB/s\tpeak RSS MB");
+        for (String format : formats) {
+            for (long size : sizes) {
+                final Path input = generate(format, size, dirtiness);
+                for (int threads : concurrency) {
+                    final Result result = measure(format, input, size, threads, Math.max(imports, threads));
+                    System.out.printf("%s\t%s\t%d\t%.1f\t%.1f\t%.1f\t%.1f\t%s%n", format, formatSize(size), threads,
+                            result.megabytesPerSecond, result.p50Millis, result.p99Millis, result.allocationMegabytesPerSecond,
+                            result.peakRssMegabytes < 0 ? "n/a" : Long.toString(result.peakRssMegabytes));
+                    measured.setProperty(format + "." + formatSize(size) + "." + threads, Double.toString(result.megabytesPerSecond));
+                }
+                Files.delete(input);
+            }
+        }
+        System.out.println(dataRepository.getMemoryGovernor());
+        return compareWithBaseline(measured);
+    }
+
+    private static final class Result {
+        double megabytesPerSecond;
+        double p50Millis;
+        double p99Millis;
+        double allocationMegabytesPerSecond;
+        long peakRssMegabytes;
+    }
+
+    private Result measure(String format, Path input, long size, int threads, int imports) throws Exception {
+        final ExecutorService uploaders = Executors.newFixedThreadPool(threads);
+        final List<Future<Long>> latencies = new ArrayList<>(imports);
+        final Sampler sampler = new Sampler();
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < imports; i++)
+                latencies.add(uploaders.submit(() -> importOnce(format, input)));
+            final List<Long> sorted = new ArrayList<>(imports);
+            for (Future<Long> latency : latencies)
+                sorted.add(latency.get());
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            Collections.sort(sorted);
+
+            final Result result = new Result();
+            result.megabytesPerSecond = size * (double) imports / (1024 * 1024) / seconds;
+            result.p50Millis = percentile(sorted, 0.5) / 1e6;
+            result.p99Millis = percentile(sorted, 0.99) / 1e6;
+            sampler.sample();
+            result.allocationMegabytesPerSecond = sampler.allocatedBytes() / (1024.0 * 1024) / seconds;
+            result.peakRssMegabytes = sampler.peakRssMegabytes();
+            return result;
+        } finally {
+            sampler.close();
+            uploaders.shutdownNow();
+        }
+    }
+
+    /**
+     * @return latency of whole import in nanoseconds
+     */
+    private long importOnce(String format, Path input) throws IOException {
+        final Sequence sequence = Sequence.builder().bufferId(UUID.randomUUID()).name("harness").build();
+        final Function<Stream<ByteBuffer>, Stream<ByteBuffer>> transformer = format.equals(FASTA)
+                ? RawDataProcessor.transformFASTAToInternal()
+                : RawDataProcessor::transformPlain;
+        final long start = System.nanoTime();
+        try (InputStream upload = new FileInputStream(input.toFile())) {
+            dataRepository.saveRawBuffer(sequence.getBufferId(), format, upload);
+            if (shards > 0)
+                coordinator.importSharded(sequence, format, shards);
+            else
+                processor.batchProcessor(sequence, format, transformer);
+        }
+        final long latency = System.nanoTime() - start;
+        dataRepository.deleteInternalBuffer(sequence.getBufferId());
+        return latency;
+    }
+
+    private Path generate(String format, long size, double dirtiness) throws IOException {
+        final Path input = workDir.resolve("input-" + formatSize(size) + "." + format);
+        final SplittableRandom random = new SplittableRandom(size);
+        final byte[] line = new byte[LINE_WIDTH + 1];
+        line[LINE_WIDTH] = '\n';
+        long written = 0;
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(input), 1 << 16)) {
+            if (format.equals(FASTA)) {
+                final byte[] header = (">harness synthetic sequence " + formatSize(size) + "\n").getBytes(StandardCharsets.US_ASCII);
+                output.write(header);
+                written += header.length;
+            }
+            while (written < size) {
+                final int length = (int) Math.min(LINE_WIDTH, size - written);
+                for (int i = 0; i < length; i++)
+                    line[i] = random.nextDouble() < dirtiness
+                            ? DIRT[random.nextInt(DIRT.length)]
+                            : NUCLEIC[random.nextInt(NUCLEIC.length)];
+                output.write(line, 0, length);
+                output.write('\n');
+                written += length + 1;
+            }
+        }
+        return input;
+    }
+
+    private boolean compareWithBaseline(Properties measured) throws IOException {
+        if (!options.containsKey("baseline"))
+            return false;
+        final Path baselineFile = Paths.get(options.get("baseline"));
+        if (options.containsKey("record-baseline")) {
+            try (Writer writer = Files.newBufferedWriter(baselineFile, StandardCharsets.UTF_8)) {
+                measured.store(writer, "preprocesor throughput baseline in MB/s");
+            }
+            System.out.println("Baseline recorded to " + baselineFile);
+            return false;
+        }
+        final Properties baseline = new Properties();
+        try (BufferedReader reader = Files.newBufferedReader(baselineFile, StandardCharsets.UTF_8)) {
+            baseline.load(reader);
+        }
+        final double maxRegression = Double.parseDouble(options.getOrDefault("max-regression", "10"));
+        boolean regressed = false;
+        final List<String> keys = new ArrayList<>(measured.stringPropertyNames());
+        keys.sort(Comparator.naturalOrder());
+        for (String key : keys) {
+            final String expected = baseline.getProperty(key);
+            if (expected == null)
+                continue;
+            final double change = (Double.parseDouble(measured.getProperty(key)) / Double.parseDouble(expected) - 1) * 100;
+            if (change < -maxRegression) {
+                regressed = true;
+                System.out.printf("REGRESSION %s: %.1f %% against baseline (allowed -%.1f %%)%n", key, change, maxRegression);
+            }
+        }
+        return regressed;
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(percentile * sorted.size()) - 1));
+    }
+
+    /**
+     * Samples allocation and RSS of one scenario in background.
+     * Allocation is sum of per thread deltas from start of scenario (thread that dies between samples loses only
+     * its last interval, threads of previous scenarios never make it negative).
+     * Peak RSS is VmHWM reset at start of scenario (/proc/self/clear_refs) or highest sampled VmRSS
+     * where reset is not permitted.
+     */
+    private static final class Sampler implements AutoCloseable {
+        private static final long INTERVAL_MILLIS = 50;
+
+        private final com.sun.management.ThreadMXBean threads;
+        private final Map<Long, Long> baseline = new HashMap<>();
+        private final Map<Long, Long> latest = new HashMap<>();//guarded by this
+        private final boolean hwmReset;
+        private final Thread thread;
+        private long peakRssKilobytes = -1;//guarded by this
+
+        Sampler() {
+            threads = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                    ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()
+                    : null;
+            if (threads != null) {
+                final long[] ids = threads.getAllThreadIds();
+                final long[] allocated = threads.getThreadAllocatedBytes(ids);
+                for (int i = 0; i < ids.length; i++)
+                    baseline.put(ids[i], Math.max(0, allocated[i]));
+            }
+            hwmReset = resetPeakRss();
+            sample();
+            thread = new Thread(() -> {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(INTERVAL_MILLIS);
+                        sample();
+                    }
+                } catch (InterruptedException e) {
+                    //scenario ended
+                }
+            }, "harness-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void sample() {
+            if (threads != null) {
+                final long[] ids = threads.getAllThreadIds();
+                final long[] allocated = threads.getThreadAllocatedBytes(ids);
+                for (int i = 0; i < ids.length; i++) {
+                    if (allocated[i] >= 0)
+                        latest.put(ids[i], allocated[i]);
+                }
+            }
+            peakRssKilobytes = Math.max(peakRssKilobytes, procStatus("VmRSS:"));
+        }
+
+        /**
+         * @return bytes allocated by all threads since start of scenario (or 0 if JVM can not tell)
+         */
+        synchronized long allocatedBytes() {
+            long allocated = 0;
+            for (Map.Entry<Long, Long> item : latest.entrySet())
+                allocated += Math.max(0, item.getValue() - baseline.getOrDefault(item.getKey(), 0L));
+            return allocated;
+        }
+
+        /**
+         * @return peak resident set size of scenario or -1 where /proc is not available
+         */
+        synchronized long peakRssMegabytes() {
+            final long peak = hwmReset ? Math.max(peakRssKilobytes, procStatus("VmHWM:")) : peakRssKilobytes;
+            return peak < 0 ? -1 : peak / 1024;
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            thread.interrupt();
+            thread.join();
+        }
+
+        private static boolean resetPeakRss() {
+            try {
+                Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+                return true;
+            } catch (IOException | SecurityException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return value of field of /proc/self/status in kB or -1 where /proc is not available
+         */
+        private static long procStatus(String field) {
+            try (Stream<String> status = Files.lines(Paths.get("/proc/self/status"))) {
+                return status.filter(line -> line.startsWith(field))
+                        .map(line -> Long.parseLong(line.replaceAll("[^0-9]", "")))
+                        .findFirst().orElse(-1L);
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+
+    private static long parseSize(String size) {
+        final String value = size.trim().toUpperCase();
+        final char unit = value.charAt(value.length() - 1);
+        final long multiplier = unit == 'K' ? 1L << 10 : unit == 'M' ? 1L << 20 : unit == 'G' ? 1L << 30 : 1;
+        return Long.parseLong(multiplier == 1 ? value : value.substring(0, value.length() - 1)) * multiplier;
+    }
+
+    private static String formatSize(long size) {
+        if (size % (1L << 30) == 0)
+            return size / (1L << 30) + "G";
+        if (size % (1L << 20) == 0)
+            return size / (1L << 20) + "M";
+        if (size % (1L << 10) == 0)
+            return size / (1L << 10) + "K";
+        return Long.toString(size);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            final String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+                options.put(name, args[++i]);
+            else
+                options.put(name, "true");
+        }
+        return options;
+    }
+
+    private void deleteWorkDir() throws IOException {
+        try (Stream<Path> files = Files.walk(workDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    System.err.println("Can't delete " + file);
+                }
+            });
+        }
+    }
+}
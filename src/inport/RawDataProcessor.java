@@ -7,15 +7,21 @@ import cz.mendelu.dnaAnalyser.sequence.data.SequenceDataRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author Josef Havránek
@@ -30,6 +36,17 @@ public class RawDataProcessor {
     @Autowired
     private SequenceDataRepository sequenceDataRepository;
 
+    public RawDataProcessor() {
+    }
+
+    /**
+     * Constructor for use outside of spring context (for example PreprocessorLoadHarness)
+     */
+    RawDataProcessor(SequenceRepository sequenceRepository, SequenceDataRepository sequenceDataRepository) {
+        this.sequenceRepository = sequenceRepository;
+        this.sequenceDataRepository = sequenceDataRepository;
+    }
+
     // beware some algorithms are binary
     // .... before debugging look how utf-8 works https://www.youtube.com/watch?v=MijmeoH9LT4
 
@@ -76,13 +93,15 @@ public class RawDataProcessor {
     /**
      * Less memory intensive and faster than default java implementation of translating characters to uppercase
      *
-     * @param buffer buffer of characters in utf-8
+     * @param buffer buffer of characters in utf-8 (from 0 to limit)
      * @return internal format of nucleic string as buffer (correctly translated are only byte chars everything else
      * is mangled but it never match nucleic.)
      */
     static private ByteBuffer nucleicStringToUppercase(ByteBuffer buffer) {
-        final int bufferSize = buffer.capacity();
+        final int bufferSize = buffer.limit();
         buffer.position(0);
+        if (bufferSize == 0)
+            return buffer;
         final int lastValidIndex = bufferSize - 1;
         final int lastLongIndex = bufferSize - 7;
 
@@ -112,10 +131,54 @@ public class RawDataProcessor {
      * @param format         format of sequence
      * @param rawTransformer method that transforms data to internal format
      */
-    void batchProcessor(Sequence s, String format, Function<Stream<String>, Stream<ByteBuffer>> rawTransformer) {
-        SequenceImportPool.importPool.invoke(
-                batchProcessorHelper(s, sequenceDataRepository.loadRawBufferToStream(s, format), rawTransformer));
-        sequenceDataRepository.deleteRawBuffer(s.getBufferId(), format);
+    void batchProcessor(Sequence s, String format, Function<Stream<ByteBuffer>, Stream<ByteBuffer>> rawTransformer) {
+        SequenceImportPool.importPool.invoke(rawBufferImport(s, format, rawTransformer, new ImportHandle(0)));
+    }
+
+    /**
+     * Same as batchProcessor but it does not block caller, import runs in import pool.
+     * When import is cancelled, partially saved data are deleted but raw buffer is kept so import can be retried.
+     *
+     * @param s              non null sequence
+     * @param format         format of sequence
+     * @param rawTransformer method that transforms data to internal format
+     * @return handle with future of imported sequence, progress and cancellation
+     */
+    public ImportHandle batchProcessorAsync(Sequence s, String format, Function<Stream<ByteBuffer>, Stream<ByteBuffer>> rawTransformer) {
+        final ImportHandle handle = new ImportHandle(sequenceDataRepository.getRawBufferSize(s.getBufferId(), format));
+        SequenceImportPool.importPool.execute(() -> {
+            try {
+                rawBufferImport(s, format, rawTransformer, handle).invoke();
+                handle.complete(s);
+            } catch (Throwable e) {
+                handle.fail(e);
+            }
+        });
+        return handle;
+    }
+
+    /**
+     * Import of raw buffer shared by batchProcessor and batchProcessorAsync
+     *
+     * @return returns ForkJoinTask to be executed in pool
+     */
+    private ForkJoinTask<Boolean> rawBufferImport(Sequence s, String format, Function<Stream<ByteBuffer>, Stream<ByteBuffer>> rawTransformer,
+                                                  ImportHandle handle) {
+        return ForkJoinTask.adapt(() -> {
+            final String FASTAComment = sequenceDataRepository.loadFASTAHeader(s.getBufferId());
+            if (FASTAComment != null)
+                s.setFastaComment(FASTAComment);
+            //ranges of raw buffer are transformed by subtasks forked from here, writer gets them in order
+            Stream<ByteBuffer> transformed = sequenceDataRepository.transformRawBuffer(s, format, chunk -> {
+                handle.addProcessed(chunk.limit());
+                try (Stream<ByteBuffer> result = rawTransformer.apply(Stream.of(chunk))) {
+                    return result.collect(Collectors.toList());
+                }
+            });
+            batchProcessorHelper(s, transformed, Function.identity(), handle).invoke();
+            sequenceDataRepository.deleteRawBuffer(s.getBufferId(), format);
+            return true;
+        });
     }
 
     /**
@@ -126,53 +189,126 @@ public class RawDataProcessor {
      * they use same pool) ... this is only way to keep stream to spawn new system threads and use pre made pool
      *
      * @param s              sequence
-     * @param input          valid stream of strings of lines. (is fully managed internally and does not have to be closed)
+     * @param input          valid stream of lines or raw chunks. (is fully managed internally and does not have to be closed)
      * @param rawTransformer method that transforms data to internal format
+     * @param <T>            type of input (String lines or raw buffer chunks)
      * @return returns ForkJoinTask to be executed in pool
      */
-    ForkJoinTask<Boolean> batchProcessorHelper(Sequence s, Stream<String> input, Function<Stream<String>, Stream<ByteBuffer>> rawTransformer) {
+    <T> ForkJoinTask<Boolean> batchProcessorHelper(Sequence s, Stream<T> input, Function<Stream<T>, Stream<ByteBuffer>> rawTransformer) {
+        return batchProcessorHelper(s, input, rawTransformer, new ImportHandle(0));
+    }
+
+    /**
+     * Same as batchProcessorHelper but cancellation of import is checked before every chunk
+     *
+     * @param handle handle of import (cancellation stops saving and partially saved data are deleted)
+     */
+    <T> ForkJoinTask<Boolean> batchProcessorHelper(Sequence s, Stream<T> input, Function<Stream<T>, Stream<ByteBuffer>> rawTransformer,
+                                                   ImportHandle handle) {
         return ForkJoinTask.adapt(() -> {
             try (Stream<ByteBuffer> internalFormatStream = rawTransformer.apply(input.parallel())) {
                 AtomicInteger length = new AtomicInteger(0);
                 NucleicCounterService counter = new NucleicCounterService();
-                Iterator<ByteBuffer> iterator = internalFormatStream
-                        /*locking to avoid changes*/
-                        .map(ByteBuffer::asReadOnlyBuffer)
-                        /*initiate nucleic counting*/
-                        .peek(toCount ->
-                                {
-                                    length.addAndGet(toCount.limit());
-                                    counter.countBufferAsync(toCount);
-                                }
-                        ).iterator();
+                Iterator<ByteBuffer> transformed = internalFormatStream
+                        .peek(chunk -> length.addAndGet(chunk.limit()))
+                        .iterator();
+                //cancellation is checked before next chunk is pulled so no borrowed buffer is lost
+                Iterator<ByteBuffer> iterator = new Iterator<ByteBuffer>() {
+                    @Override
+                    public boolean hasNext() {
+                        handle.checkCancelled();
+                        return transformed.hasNext();
+                    }
+
+                    @Override
+                    public ByteBuffer next() {
+                        return transformed.next();
+                    }
+                };
 
                 //saving buffers (execution of stream happens here)
-                sequenceDataRepository.save(s.getBufferId(), iterator);
+                //buffers are not changed after write so they are counted then and counter returns them to pool
+                Path saved = sequenceDataRepository.save(s.getBufferId(), iterator,
+                        written -> counter.countBufferAsync(written, sequenceDataRepository::releaseBuffer));
+                //forcing to disk (group commit) runs while counting finishes
+                CompletableFuture<Void> durable = sequenceDataRepository.makeDurable(s.getBufferId(), saved);
                 s.setLength(length.get());
                 s.setNucleicCounts(counter.getCounts());
-                sequenceRepository.save(s);
+                completeImport(s, durable, handle);
                 return true;
             }
         });
     }
 
+    /**
+     * Finishes import of saved buffer: waits until it is durable, builds its motif index and saves sequence.
+     * Saved buffer is deleted when forcing fails or import was cancelled before point of no return.
+     *
+     * @param s       sequence with length and counts set
+     * @param durable future returned by SequenceDataRepository.makeDurable
+     * @param handle  handle of import
+     */
+    void completeImport(Sequence s, CompletableFuture<Void> durable, ImportHandle handle) {
+        try {
+            durable.join();//sequence must never point to buffer that is not on disk yet
+            sequenceDataRepository.buildMotifIndex(s.getBufferId());
+            handle.commit();//cancel that came after last chunk still stops import here
+        } catch (CompletionException | CancellationException e) {
+            sequenceDataRepository.deleteInternalBuffer(s.getBufferId());
+            throw e;
+        }
+        sequenceRepository.save(s);
+    }
+
     /**
      * transforms data to inner format
+     * <p>
+     * Is meant for streams that did not went through SequenceDataRepository.saveRawBuffer (for example NCBI download)
+     * leading comment is peeled of sequentially so parallel part only checks first char of line.
      *
      * @param input        stream containing lines of fasta Strings
      * @param FASTAComment non null string buffer.... need to be regexed \0 replaces new lines because perf. reson
      * @return transformed stream of buffers in internal format to save or compute upon
      */
-
     private static Stream<ByteBuffer> transformFASTAToInternalExecutor(Stream<String> input, StringBuffer FASTAComment) {
-        Stream<String> plain = input.filter(line -> {
-            if ((line.startsWith(">") || line.startsWith(";"))) {
+        final boolean parallel = input.isParallel();
+        final Spliterator<String> lines = input.spliterator();
+        final StringBuilder leadingComment = new StringBuilder();
+        final String[] firstSequenceLine = new String[1];
+        boolean hasNext;
+        do {
+            hasNext = lines.tryAdvance(line -> {
+                if (isFASTAComment(line)) {
+                    if (leadingComment.length() > 0)
+                        leadingComment.append('\0');
+                    leadingComment.append(line);
+                } else {
+                    firstSequenceLine[0] = line;
+                }
+            });
+        } while (hasNext && firstSequenceLine[0] == null);
+        if (leadingComment.length() > 0)
+            FASTAComment.append(leadingComment).append("\n");
+
+        //comments after sequence are not valid FASTA but they can not end up in sequence
+        Stream<String> plain = StreamSupport.stream(lines, parallel).filter(line -> {
+            if (isFASTAComment(line)) {
                 FASTAComment.append(line).append("\n");
                 return false;
             }
             return true;
         });
-        return RawDataProcessor.transformPlain(plain);
+        if (firstSequenceLine[0] != null)
+            plain = Stream.concat(Stream.of(firstSequenceLine[0]), plain);
+        //stream built from spliterator does not have close handlers of input (NCBI download closes connection there)
+        return RawDataProcessor.transformPlainLines(plain).onClose(input::close);
+    }
+
+    private static boolean isFASTAComment(String line) {
+        if (line.isEmpty())
+            return false;
+        final char first = line.charAt(0);
+        return first == '>' || first == ';';
     }
 
     /**
@@ -184,15 +320,109 @@ public class RawDataProcessor {
         return in -> transformFASTAToInternalExecutor(in, FASTAComment);
     }
 
+    /**
+     * Transformation of raw buffers saved by SequenceDataRepository.saveRawBuffer, FASTA comments are already
+     * separated there, so data are transformed same way as plain ones. Comment is set to sequence by batchProcessor.
+     */
+    public static Function<Stream<ByteBuffer>, Stream<ByteBuffer>> transformFASTAToInternal() {
+        return RawDataProcessor::transformPlain;
+    }
+
+    /**
+     * transforms FASTQ data to inner format
+     *
+     * @param input      stream of chunks where every chunk contains whole FASTQ records with their lines joined by \0
+     *                   (this is done by pre-processing in SequenceDataRepository.saveRawBuffer),
+     *                   chunk can contain several such packed lines separated by new line
+     * @param statistics non null statistics that are filled with read counts, lengths and qualities
+     * @return transformed stream of buffers in internal format to save or compute upon
+     */
+    private static Stream<ByteBuffer> transformFASTQToInternalExecutor(Stream<ByteBuffer> input, FASTQStatistics statistics) {
+        return input.map(chunk -> extractFASTQSequences(chunk, statistics))
+                .map(RawDataProcessor::nucleicStringToUppercase).map(RawDataProcessor::trimNonNucleic);
+    }
+
+    /**
+     * convenience wrapper of transformFASTQToInternalExecutor
+     *
+     * @param statistics non null statistics of reads (quality lines are not saved only summarized here)
+     */
+    public static Function<Stream<ByteBuffer>, Stream<ByteBuffer>> transformFASTQToInternal(final FASTQStatistics statistics) {
+        return in -> transformFASTQToInternalExecutor(in, statistics);
+    }
+
+    /**
+     * Moves sequence lines of packed FASTQ records to beginning of chunk (in place so there is no per record
+     * allocation) headers are skipped and quality lines are only summarized.
+     *
+     * @param records    writable chunk of records, lines of record joined by \0 (utf-8 never produces 0 byte on its own),
+     *                   packed lines of records are separated by new line (it ends last record of line same way)
+     * @param statistics statistics to add summary of this chunk to
+     * @return same chunk limited to concatenated sequences
+     */
+    private static ByteBuffer extractFASTQSequences(ByteBuffer records, FASTQStatistics statistics) {
+        final int phredOffset = FASTQStatistics.getPhredOffset();
+        int recordLine = 0;
+        int write = 0;
+        int readLength = 0;
+        long reads = 0, bases = 0, quality = 0;
+        long shortest = Long.MAX_VALUE, longest = 0;
+        byte current;
+
+        final int end = records.limit();
+        for (int read = 0; read < end; read++) {
+            current = records.get(read);
+            if (current == 0 || current == '\n') {
+                if (recordLine == 1) {
+                    reads++;
+                    bases += readLength;
+                    shortest = Math.min(shortest, readLength);
+                    longest = Math.max(longest, readLength);
+                    readLength = 0;
+                }
+                recordLine = (recordLine + 1) & 3;
+            } else if (recordLine == 1) {
+                records.put(write++, current);//write never overtakes read so this is safe
+                readLength++;
+            } else if (recordLine == 3) {
+                quality += current - phredOffset;
+            }
+        }
+        statistics.add(reads, bases, quality, shortest, longest);
+        records.position(0);
+        records.limit(write);
+        return records;
+    }
+
+    /**
+     * Transforms data to inner format
+     *
+     * @param in stream containing writable chunks of nucleic chars (not containing FASTA coments)
+     * chunks are transformed in place (empty ones are kept so they get back to buffer pool same way as others)
+     * @return returns transformed buffers to save in internal format or compute upon
+     */
+    static Stream<ByteBuffer> transformPlain(Stream<ByteBuffer> in) {
+        return in.map(RawDataProcessor::transformChunk);
+    }
+
+    /**
+     * Transforms one chunk to inner format in place (uppercase and trim stages of transformPlain)
+     *
+     * @param chunk writable chunk of nucleic chars (from 0 to limit)
+     * @return same chunk limited to data in internal format
+     */
+    static ByteBuffer transformChunk(ByteBuffer chunk) {
+        return trimNonNucleic(nucleicStringToUppercase(chunk));
+    }
+
     /**
      * Transforms data to inner format
      *
      * @param in stream containing lines of nucleic Strings (not containing FASTA coments)
      * @return returns transformed buffers to save in internal format or compute upon
      */
-    static Stream<ByteBuffer> transformPlain(Stream<String> in) {
-        return in.map(line -> ByteBuffer.wrap(line.getBytes(UTF_8))).filter(buff -> buff.capacity() > 0)
-                .map(RawDataProcessor::nucleicStringToUppercase).map(RawDataProcessor::trimNonNucleic);
+    static Stream<ByteBuffer> transformPlainLines(Stream<String> in) {
+        return transformPlain(in.map(line -> ByteBuffer.wrap(line.getBytes(UTF_8))));
     }
 
     /**
@@ -217,28 +447,25 @@ public class RawDataProcessor {
     }
 
     /**
-     * fixes dirty buffer
+     * fixes dirty buffer in place (clean data are moved over dirty ones, so nothing is allocated)
      *
      * @param in buffer where first dirty position is set
-     * @return returns clean buffer
+     * @return returns same buffer with limit set to end of clean data
      */
     private static ByteBuffer fixDirtyBuffer(ByteBuffer in) {
-        ByteArrayOutputStream clean = new ByteArrayOutputStream();
-        int unclean = in.position();
-        in.position(0);
-
-        //copy already known clean
-        while (in.position() < unclean)
-            clean.write(in.get());
+        //everything before first dirty position is already clean
+        int clean = in.position();
+        final int end = in.limit();
         byte current;
-        in.position(unclean + 1);
 
-        //check leftovers if they are ok (and copy them to clean)
-        while (in.hasRemaining()) {
-            current = in.get();
+        //check leftovers if they are ok (and move them behind clean)
+        for (int read = clean + 1; read < end; read++) {
+            current = in.get(read);
             if (!Nucleic.isNotNuclidInInernal(current))
-                clean.write(current);
+                in.put(clean++, current);
         }
-        return ByteBuffer.wrap(clean.toByteArray());
+        in.position(0);
+        in.limit(clean);
+        return in;
     }
 }
@@ -0,0 +1,97 @@
+package sequence.inport;
+
+import sequence.Nucleic;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Worker process of sharded import. It transforms one byte range of raw buffer to internal format
+ * (same uppercase and trim stages as RawDataProcessor.transformPlain), writes it to shard file and
+ * writes length and nucleic counts of shard to statistics file next to it (shard + ".stats").
+ * Worker is sequential, parallelism comes from number of shards.
+ * <p>
+ * Usage: ShardWorker rawFile from to shardFile
+ * Exits with 0 when shard and its statistics are written, 1 otherwise.
+ */
+public class ShardWorker {
+    static final String STATS_SUFFIX = ".stats";
+    static final String LENGTH = "length";
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private ShardWorker() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 4) {
+            System.err.println("Usage: ShardWorker rawFile from to shardFile");
+            System.exit(1);
+        }
+        try {
+            process(Paths.get(args[0]), Long.parseLong(args[1]), Long.parseLong(args[2]), Paths.get(args[3]));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Transforms range of raw buffer to shard
+     *
+     * @param raw   raw buffer (comments of FASTA are already separated by SequenceDataRepository.saveRawBuffer)
+     * @param from  first byte of range, it must be at beginning of line
+     * @param to    end of range (exclusive)
+     * @param shard file for data of shard in internal format
+     */
+    static void process(Path raw, long from, long to, Path shard) throws IOException {
+        final long[] counts = new long[256];//indexed by byte in internal format
+        long length = 0;
+        final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try (FileChannel input = FileChannel.open(raw, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(shard, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            long position = from;
+            while (position < to) {
+                chunk.clear();
+                chunk.limit((int) Math.min(CHUNK_SIZE, to - position));
+                while (chunk.hasRemaining()) {
+                    final int read = input.read(chunk, position + chunk.position());
+                    if (read < 0)
+                        throw new IOException("Raw buffer " + raw + " ends before end of shard");
+                }
+                position += chunk.limit();
+                chunk.flip();
+
+                final ByteBuffer transformed = RawDataProcessor.transformChunk(chunk);
+                for (int i = 0; i < transformed.limit(); i++)
+                    counts[transformed.get(i) & 0xff]++;
+                length += transformed.limit();
+                transformed.position(0);
+                while (transformed.hasRemaining())
+                    output.write(transformed);
+            }
+            output.force(false);
+        }
+
+        final Properties stats = new Properties();
+        stats.setProperty(LENGTH, Long.toString(length));
+        for (Nucleic nucleic : Nucleic.values()) {
+            if (nucleic != Nucleic.NONE && counts[nucleic.toByte() & 0xff] > 0)
+                stats.setProperty(nucleic.name(), Long.toString(counts[nucleic.toByte() & 0xff]));
+        }
+        //statistics are written last, their existence means that shard is complete
+        final Path statsFile = shard.resolveSibling(shard.getFileName() + STATS_SUFFIX);
+        try (Writer writer = Files.newBufferedWriter(statsFile, StandardCharsets.UTF_8)) {
+            stats.store(writer, "shard " + from + "-" + to);
+        }
+    }
+}
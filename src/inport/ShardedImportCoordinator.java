@@ -0,0 +1,173 @@
+package sequence.inport;
+
+import sequence.Nucleic;
+import sequence.Sequence;
+import sequence.data.SequenceDataRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Import of one huge raw buffer by several worker processes (ShardWorker). Raw buffer is split to line aligned
+ * byte ranges, every worker transforms its range to shard file and reports its length and nucleic counts,
+ * coordinator computes offsets of shards from their lengths, merges shards to final buffer and sums counts.
+ * Workers are local processes by default, other launchers (ssh, batch scheduler) only have to run worker
+ * on host that sees sequence dir on same path.
+ * <p>
+ * FASTQ is not supported (records span multiple lines), FASTA comments are already separated by saveRawBuffer.
+ */
+@Slf4j
+@Service
+public class ShardedImportCoordinator {
+
+    /**
+     * Starts worker process
+     */
+    public interface ShardLauncher {
+        /**
+         * @param workerArguments arguments of ShardWorker.main
+         * @param log             file for output of worker
+         * @return started worker
+         */
+        Process launch(List<String> workerArguments, Path log) throws IOException;
+    }
+
+    /**
+     * Launcher of workers on local host (same java and class path as this JVM)
+     */
+    public static final ShardLauncher LOCAL = (workerArguments, log) -> {
+        final List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                ShardWorker.class.getName()));
+        command.addAll(workerArguments);
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+    };
+
+    private static final String SHARD_PREFIX = "shard-";
+    private static final long POLL_MILLIS = 100;
+
+    @Autowired
+    private RawDataProcessor rawDataProcessor;
+
+    @Autowired
+    private SequenceDataRepository sequenceDataRepository;
+
+    private ShardLauncher launcher = LOCAL;
+
+    public ShardedImportCoordinator() {
+    }
+
+    /**
+     * Constructor for use outside of spring context (for example PreprocessorLoadHarness)
+     */
+    ShardedImportCoordinator(RawDataProcessor rawDataProcessor, SequenceDataRepository sequenceDataRepository) {
+        this.rawDataProcessor = rawDataProcessor;
+        this.sequenceDataRepository = sequenceDataRepository;
+    }
+
+    public void setLauncher(ShardLauncher launcher) {
+        this.launcher = launcher;
+    }
+
+    /**
+     * Imports raw buffer by worker processes, saves sequence and deletes raw buffer.
+     * When any worker fails, others are stopped right away, shards are deleted and raw buffer is kept.
+     *
+     * @param s      non null sequence
+     * @param format format of raw buffer (plain or FASTA)
+     * @param shards number of workers
+     */
+    public void importSharded(Sequence s, String format, int shards) {
+        final long[] ranges = sequenceDataRepository.splitRawBuffer(s.getBufferId(), format, shards);
+        final Path raw = sequenceDataRepository.getRawBufferPath(s.getBufferId(), format);
+        final Path shardDir = sequenceDataRepository.getShardDir(s.getBufferId());
+        final List<Path> shardFiles = new ArrayList<>(shards);
+        final List<Process> workers = new ArrayList<>(shards);
+        try {
+            for (int i = 0; i < shards; i++) {
+                final Path shard = shardDir.resolve(SHARD_PREFIX + i);
+                shardFiles.add(shard);
+                workers.add(launcher.launch(Arrays.asList(raw.toString(), Long.toString(ranges[i]),
+                        Long.toString(ranges[i + 1]), shard.toString()), shardDir.resolve(SHARD_PREFIX + i + ".log")));
+            }
+            //all workers are watched so failure of any of them stops import immediately
+            Process running;
+            do {
+                running = null;
+                for (int i = 0; i < shards; i++) {
+                    final Process worker = workers.get(i);
+                    if (worker.isAlive()) {
+                        running = worker;
+                        continue;
+                    }
+                    if (worker.exitValue() != 0)
+                        throw new InternalServerException("Shard worker " + i + " of " + s.getBufferId()
+                                + " failed with exit code " + worker.exitValue()
+                                + " (see " + shardDir.resolve(SHARD_PREFIX + i + ".log") + ")");
+                }
+                if (running != null)
+                    running.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } while (running != null);
+
+            //offsets of shards in final buffer are sums of trimmed lengths of shards before them
+            final long[] offsets = new long[shards + 1];
+            final Map<Nucleic, Long> counts = new EnumMap<>(Nucleic.class);
+            for (int i = 0; i < shards; i++) {
+                final Properties stats = loadStats(shardFiles.get(i));
+                offsets[i + 1] = offsets[i] + Long.parseLong(stats.getProperty(ShardWorker.LENGTH));
+                for (String name : stats.stringPropertyNames()) {
+                    if (!name.equals(ShardWorker.LENGTH))
+                        counts.merge(Nucleic.valueOf(name), Long.parseLong(stats.getProperty(name)), Long::sum);
+                }
+            }
+
+            final String FASTAComment = sequenceDataRepository.loadFASTAHeader(s.getBufferId());
+            if (FASTAComment != null)
+                s.setFastaComment(FASTAComment);
+            s.setLength(Math.toIntExact(offsets[shards]));
+            final EnumMap<Nucleic, Integer> nucleicCounts = new EnumMap<>(Nucleic.class);
+            counts.forEach((nucleic, count) -> nucleicCounts.put(nucleic, Math.toIntExact(count)));
+            s.setNucleicCounts(nucleicCounts);
+            final Path saved = sequenceDataRepository.saveShards(s.getBufferId(), shardFiles, offsets);
+            rawDataProcessor.completeImport(s, sequenceDataRepository.makeDurable(s.getBufferId(), saved), new ImportHandle(0));
+            sequenceDataRepository.deleteRawBuffer(s.getBufferId(), format);
+            log.debug("Sequence {} imported by {} shards ({} bases)", s.getBufferId(), shards, offsets[shards]);
+        } catch (IOException e) {
+            throw new InternalServerException(String.format("Sharded import of %s failed.", s.getBufferId()), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerException("waiting for shard workers interrupted", e);
+        } finally {
+            for (Process worker : workers)
+                worker.destroyForcibly();//only failed import leaves workers running
+            sequenceDataRepository.deleteShards(s.getBufferId());
+        }
+    }
+
+    private static Properties loadStats(Path shard) throws IOException {
+        final Properties stats = new Properties();
+        try (BufferedReader reader = Files.newBufferedReader(
+                shard.resolveSibling(shard.getFileName() + ShardWorker.STATS_SUFFIX), StandardCharsets.UTF_8)) {
+            stats.load(reader);
+        }
+        return stats;
+    }
+}